@@ -0,0 +1,167 @@
+package io.github.bensku.sleeper;
+
+import java.lang.reflect.Proxy;
+import java.util.function.BiFunction;
+
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.LivingEntity;
+import org.bukkit.entity.Player;
+import org.bukkit.entity.Zombie;
+import org.bukkit.plugin.Plugin;
+
+import io.github.bensku.sleeper.filter.MetadataPacketFilter;
+
+/**
+ * Sleeper without a server. Bukkit objects are stand-ins that only
+ * implement what tracker and packet filters call on hot paths; everything
+ * else returns null, false or zero.
+ *
+ */
+public class BenchmarkEnvironment {
+
+	private final Plugin plugin;
+	private final World world;
+	private final SleepCounter counter;
+	private final SleeperGrid grid;
+	private final SleepTracker tracker;
+	private final EntityIndex<Player> players;
+	private final EntityTable<LivingEntity> entities;
+
+	public BenchmarkEnvironment() {
+		this.plugin = stub(Plugin.class, (method, args) -> method.equals("getName") ? "Sleeper" : null);
+		this.world = stub(World.class, (method, args) -> method.equals("getName") ? "world" : null);
+		this.counter = new SleepCounter();
+		this.grid = new SleeperGrid();
+		this.tracker = new SleepTracker(plugin, counter, grid);
+		this.players = new EntityIndex<>();
+		this.entities = new EntityTable<>();
+	}
+
+	public Plugin getPlugin() {
+		return plugin;
+	}
+
+	public SleepTracker getTracker() {
+		return tracker;
+	}
+
+	public EntityIndex<Player> getPlayers() {
+		return players;
+	}
+
+	public EntityTable<LivingEntity> getEntities() {
+		return entities;
+	}
+
+	/**
+	 * Creates Sleeper API on top of this environment. It is not installed as
+	 * {@link SleeperApi#getInstance()}.
+	 * @param metadataFilter Metadata filter that API should use.
+	 * @return A new API instance.
+	 */
+	public SleeperApi createApi(MetadataPacketFilter metadataFilter) {
+		return new SleeperApi(plugin, tracker, counter, grid, entities, metadataFilter, 0);
+	}
+
+	/**
+	 * Creates a player and adds it to player index. The player is awake
+	 * and has never been anything else.
+	 * @param entityId Entity id.
+	 * @param x X coordinate.
+	 * @param y Y coordinate.
+	 * @param z Z coordinate.
+	 * @return A player.
+	 */
+	public Player addPlayer(int entityId, double x, double y, double z) {
+		Player player = entity(Player.class, entityId, x, y, z);
+		players.add(player);
+		return player;
+	}
+
+	/**
+	 * Creates a living entity that is not a player and adds it to entity
+	 * index.
+	 * @param entityId Entity id.
+	 * @param x X coordinate.
+	 * @param y Y coordinate.
+	 * @param z Z coordinate.
+	 * @return A zombie.
+	 */
+	public LivingEntity addEntity(int entityId, double x, double y, double z) {
+		Zombie zombie = entity(Zombie.class, entityId, x, y, z);
+		entities.add(zombie);
+		return zombie;
+	}
+
+	private <T extends LivingEntity> T entity(Class<T> type, int entityId, double x, double y, double z) {
+		return stub(type, (method, args) -> {
+			switch (method) {
+			case "getEntityId":
+				return entityId;
+			case "getWorld":
+				return world;
+			case "isValid":
+			case "isOnline":
+				return true;
+			case "getLocation":
+				if (args != null && args.length == 1) {
+					Location loc = (Location) args[0];
+					loc.setWorld(world);
+					loc.setX(x);
+					loc.setY(y);
+					loc.setZ(z);
+					return loc;
+				}
+				return new Location(world, x, y, z);
+			default:
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Creates a stand-in for an interface. Identity is used for equality,
+	 * and methods that the handler doesn't implement return default values.
+	 * @param type Interface.
+	 * @param handler Method name, arguments -> return value, or null.
+	 * @return A proxy.
+	 */
+	private static <T> T stub(Class<T> type, BiFunction<String, Object[], Object> handler) {
+		Object proxy = Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, (self, method, args) -> {
+			switch (method.getName()) {
+			case "hashCode":
+				return System.identityHashCode(self);
+			case "equals":
+				return self == args[0];
+			case "toString":
+				return type.getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(self));
+			default:
+				Object value = handler.apply(method.getName(), args);
+				if (value != null || !method.getReturnType().isPrimitive()) {
+					return value;
+				}
+				Class<?> returnType = method.getReturnType();
+				if (returnType == boolean.class) {
+					return false;
+				} else if (returnType == void.class) {
+					return null;
+				} else if (returnType == double.class) {
+					return 0.0;
+				} else if (returnType == float.class) {
+					return 0.0f;
+				} else if (returnType == long.class) {
+					return 0L;
+				} else if (returnType == char.class) {
+					return '\0';
+				} else if (returnType == byte.class) {
+					return (byte) 0;
+				} else if (returnType == short.class) {
+					return (short) 0;
+				}
+				return 0;
+			}
+		});
+		return type.cast(proxy);
+	}
+}
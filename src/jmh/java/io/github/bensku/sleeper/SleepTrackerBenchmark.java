@@ -0,0 +1,86 @@
+package io.github.bensku.sleeper;
+
+import java.util.concurrent.TimeUnit;
+
+import org.bukkit.entity.Player;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Cost of lookups that packet threads do before deciding whether to touch
+ * a packet at all.
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SleepTrackerBenchmark {
+
+	/**
+	 * Number of players online; every other one has slept.
+	 */
+	@Param({"10", "100", "1000"})
+	public int population;
+
+	private SleepTracker tracker;
+	private EntityIndex<Player> players;
+
+	/**
+	 * Ids of tracked players and of entities nobody tracks.
+	 */
+	private int[] hits, misses;
+	private int next;
+
+	@Setup
+	public void setup() {
+		BenchmarkEnvironment env = new BenchmarkEnvironment();
+		tracker = env.getTracker();
+		players = env.getPlayers();
+		hits = new int[population / 2];
+		misses = new int[population / 2];
+		for (int i = 0; i < hits.length; i++) {
+			int id = i * 7 + 1; // Not sequential, like on a real server
+			Player player = env.addPlayer(id, i, 64, i);
+			tracker.setSleepStatus(player, i % 2 == 0 ? SleepStatus.SLEEPING : SleepStatus.AWAKE);
+			hits[i] = id;
+			misses[i] = id + 3;
+		}
+	}
+
+	private int nextIndex() {
+		int i = next;
+		next = i + 1 == hits.length ? 0 : i + 1;
+		return i;
+	}
+
+	@Benchmark
+	public SleepStatus trackedStatusHit() {
+		return tracker.getTrackedStatus(hits[nextIndex()]);
+	}
+
+	@Benchmark
+	public SleepStatus trackedStatusMiss() {
+		return tracker.getTrackedStatus(misses[nextIndex()]);
+	}
+
+	@Benchmark
+	public SleepStatus sleepStatus() {
+		return tracker.getSleepStatus(hits[nextIndex()]);
+	}
+
+	@Benchmark
+	public Player playerIndexHit() {
+		return players.get(hits[nextIndex()]);
+	}
+
+	@Benchmark
+	public Player playerIndexMiss() {
+		return players.get(misses[nextIndex()]);
+	}
+}
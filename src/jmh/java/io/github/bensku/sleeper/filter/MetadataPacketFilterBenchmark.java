@@ -0,0 +1,137 @@
+package io.github.bensku.sleeper.filter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.bukkit.entity.LivingEntity;
+import org.bukkit.entity.Player;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import io.github.bensku.sleeper.BenchmarkEnvironment;
+import io.github.bensku.sleeper.SleepStatus;
+import io.github.bensku.sleeper.nms.NmsAccess;
+
+/**
+ * Cost of rewriting one metadata packet for one observer. This is what
+ * both backends do for every metadata packet that the server sends.
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MetadataPacketFilterBenchmark {
+
+	/**
+	 * Whose metadata the packet is.
+	 *
+	 */
+	public enum Target {
+
+		/**
+		 * Entity that has never slept, e.g. a cow. Most packets are these.
+		 */
+		UNTRACKED,
+
+		/**
+		 * Player who has slept, but is awake now. Observer was shown them
+		 * sleeping, so they need to be woken up.
+		 */
+		AWAKE,
+
+		/**
+		 * Sleeping player.
+		 */
+		SLEEPING,
+
+		/**
+		 * Sleeping living entity that is not a player.
+		 */
+		SLEEPING_ENTITY
+	}
+
+	private static final int TARGET_ID = 1000;
+
+	@Param
+	public Target target;
+
+	/**
+	 * Number of items in packet. Full metadata of player includes pose and
+	 * bed position, which are replaced rather than appended.
+	 */
+	@Param({"1", "4", "16"})
+	public int items;
+
+	private BenchmarkEnvironment env;
+	private MetadataPacketFilter filter;
+	private Player observer;
+	private LivingEntity targetEntity;
+	private Object packet;
+	private List<Object> packetItems;
+
+	@Setup
+	public void setup() throws Throwable {
+		env = new BenchmarkEnvironment();
+		filter = new MetadataPacketFilter(env.getPlugin(), env.getTracker(), env.getPlayers(),
+				env.getEntities(), MetadataPacketFilter.Backend.PROTOCOLLIB, new FilterMetrics());
+		observer = env.addPlayer(1, 0, 64, 0);
+		filter.addObserver(observer);
+
+		switch (target) {
+		case UNTRACKED:
+			break; // Not in tracker or indices
+		case AWAKE:
+			targetEntity = env.addPlayer(TARGET_ID, 10, 64, 10);
+			break; // Put to sleep and woken up before every invocation
+		case SLEEPING:
+			targetEntity = env.addPlayer(TARGET_ID, 10, 64, 10);
+			env.getTracker().setSleepStatus(targetEntity, SleepStatus.SLEEPING);
+			break;
+		case SLEEPING_ENTITY:
+			targetEntity = env.addEntity(TARGET_ID, 10, 64, 10);
+			env.getTracker().setSleepStatus(targetEntity, SleepStatus.SLEEPING);
+			break;
+		default:
+			throw new AssertionError();
+		}
+
+		// Items with indices from 0 upwards; values don't matter
+		packetItems = new ArrayList<>(items);
+		Object serializer = NmsAccess.VERSION.getNmsClass("DataWatcherRegistry").getField("a").get(null);
+		Class<?> serializerClass = NmsAccess.VERSION.getNmsClass("DataWatcherSerializer");
+		for (int i = 0; i < items; i++) {
+			Object object = NmsAccess.VERSION.getNmsClass("DataWatcherObject")
+					.getConstructor(int.class, serializerClass).newInstance(i, serializer);
+			packetItems.add((Object) NmsAccess.NEW_ITEM.invokeExact(object, (Object) (byte) 0));
+		}
+		packet = (Object) NmsAccess.NEW_PACKET.invokeExact();
+		NmsAccess.SET_PACKET_ENTITY_ID.invokeExact(packet, TARGET_ID);
+	}
+
+	@Setup(Level.Invocation)
+	public void resetPacket() throws Throwable {
+		if (target == Target.AWAKE) {
+			// Wake-up is forgotten after it has been sent once, so show
+			// the target sleeping to observer again before waking them
+			env.getTracker().setSleepStatus(targetEntity, SleepStatus.SLEEPING);
+			NmsAccess.SET_PACKET_ITEMS.invokeExact(packet, (List<Object>) new ArrayList<>(packetItems));
+			filter.rewrite(packet, observer);
+			env.getTracker().setSleepStatus(targetEntity, SleepStatus.AWAKE);
+		}
+		// Sleeping rewrites modify the items in place
+		NmsAccess.SET_PACKET_ITEMS.invokeExact(packet, (List<Object>) new ArrayList<>(packetItems));
+	}
+
+	@Benchmark
+	public Object rewrite() throws Throwable {
+		return filter.rewrite(packet, observer);
+	}
+}
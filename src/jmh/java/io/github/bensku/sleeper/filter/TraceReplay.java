@@ -0,0 +1,289 @@
+package io.github.bensku.sleeper.filter;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+
+import org.bukkit.entity.LivingEntity;
+import org.bukkit.entity.Player;
+
+import io.github.bensku.sleeper.BenchmarkEnvironment;
+import io.github.bensku.sleeper.SleepStatus;
+import io.github.bensku.sleeper.SleepTracker;
+import io.github.bensku.sleeper.nms.NmsAccess;
+import net.minecraft.server.v1_15_R1.BlockPosition;
+import net.minecraft.server.v1_15_R1.DataWatcher;
+import net.minecraft.server.v1_15_R1.DataWatcherObject;
+import net.minecraft.server.v1_15_R1.DataWatcherRegistry;
+import net.minecraft.server.v1_15_R1.EntityPose;
+import net.minecraft.server.v1_15_R1.PacketPlayInEntityAction;
+import net.minecraft.server.v1_15_R1.PacketPlayInEntityAction.EnumPlayerAction;
+
+/**
+ * Replays a trace captured with {@code /sleeper trace} through metadata
+ * and leave bed filters, as fast as they can process it on one thread.
+ *
+ * <p>Sleep statuses are set to what they were when each packet was
+ * captured before it is replayed, outside of measured time. Metadata item
+ * values are not in traces, so pose and bed position items have their
+ * default values and other items are bytes; bytes added and removed are
+ * estimated from these.
+ *
+ * <p>Usage: {@code TraceReplay <trace file> [passes]}. Each pass starts
+ * from fresh state; only the last one is reported in detail, earlier ones
+ * warm up the JIT.
+ *
+ */
+public class TraceReplay {
+
+	/**
+	 * Results of one pass.
+	 *
+	 */
+	private static class Result {
+
+		long metadataPackets;
+		long actionPackets;
+
+		/**
+		 * Metadata packets that were modified or replaced by a copy.
+		 */
+		long rewritten;
+		long copied;
+
+		/**
+		 * Entity action packets that were dropped.
+		 */
+		long dropped;
+
+		long bytesAdded;
+		long bytesRemoved;
+
+		/**
+		 * Time spent in filters per packet, in nanoseconds.
+		 */
+		long[] latencies;
+		long totalTime;
+
+		long percentile(double p) {
+			return latencies[(int) Math.min(latencies.length - 1, Math.ceil(p * latencies.length) - 1)];
+		}
+	}
+
+	private final List<PacketTrace.Record> records;
+
+	private final BenchmarkEnvironment env;
+	private final SleepTracker tracker;
+	private final FilterMetrics metrics;
+	private final MetadataPacketFilter metadataFilter;
+	private final LeaveBedPacketFilter leaveBedFilter;
+
+	/**
+	 * Players and other entities by entity id.
+	 */
+	private final Map<Integer, LivingEntity> entities;
+
+	/**
+	 * Packets to replay, one per record.
+	 */
+	private final Object[] packets;
+
+	/**
+	 * Metadata items that packets are made of, by metadata index.
+	 */
+	private final Object[] items;
+
+	public TraceReplay(List<PacketTrace.Record> records) {
+		this.records = records;
+		this.env = new BenchmarkEnvironment();
+		this.tracker = env.getTracker();
+		this.metrics = new FilterMetrics();
+		this.metadataFilter = new MetadataPacketFilter(env.getPlugin(), tracker, env.getPlayers(),
+				env.getEntities(), MetadataPacketFilter.Backend.PROTOCOLLIB, metrics);
+		this.leaveBedFilter = new LeaveBedPacketFilter(env.getPlugin(), env.createApi(metadataFilter), metrics);
+		leaveBedFilter.initPacketAccess(PacketPlayInEntityAction.class);
+		this.entities = new HashMap<>();
+		this.packets = new Object[records.size()];
+		this.items = new Object[256];
+		for (int i = 0; i < items.length; i++) {
+			if (i == NmsAccess.POSE_INDEX) {
+				items[i] = new DataWatcher.Item<>(new DataWatcherObject<>(i, DataWatcherRegistry.s), EntityPose.STANDING);
+			} else if (i == NmsAccess.BED_POS_INDEX) {
+				items[i] = new DataWatcher.Item<>(new DataWatcherObject<>(i, DataWatcherRegistry.m), Optional.<BlockPosition>empty());
+			} else {
+				items[i] = new DataWatcher.Item<>(new DataWatcherObject<>(i, DataWatcherRegistry.a), (byte) 0);
+			}
+		}
+	}
+
+	private LivingEntity getOrCreate(int entityId, boolean player) {
+		LivingEntity entity = entities.get(entityId);
+		if (entity == null) {
+			// Place entities apart, so that bed items differ
+			entity = player ? env.addPlayer(entityId, entityId, 64, 0) : env.addEntity(entityId, entityId, 64, 0);
+			entities.put(entityId, entity);
+			if (player) {
+				metadataFilter.addObserver((Player) entity);
+			}
+		}
+		return entity;
+	}
+
+	/**
+	 * Creates entities and packets for all records.
+	 * @throws Throwable When NMS access fails.
+	 */
+	private void prepare() throws Throwable {
+		EnumPlayerAction[] actions = EnumPlayerAction.values();
+		for (int i = 0; i < packets.length; i++) {
+			PacketTrace.Record record = records.get(i);
+			getOrCreate(record.playerId, true);
+			if (record.kind == PacketTrace.METADATA) {
+				if (record.targetKind != PacketTrace.TARGET_NONE) {
+					getOrCreate(record.targetId, record.targetKind == PacketTrace.TARGET_PLAYER);
+				}
+				List<Object> list = new ArrayList<>(record.indices.length);
+				for (byte index : record.indices) {
+					list.add(items[index & 0xff]);
+				}
+				Object packet = (Object) NmsAccess.NEW_PACKET.invokeExact();
+				NmsAccess.SET_PACKET_ENTITY_ID.invokeExact(packet, record.targetId);
+				NmsAccess.SET_PACKET_ITEMS.invokeExact(packet, list);
+				packets[i] = packet;
+			} else {
+				packets[i] = new PacketPlayInEntityAction(record.playerId, actions[record.action]);
+			}
+		}
+	}
+
+	/**
+	 * Sets status of an entity to what it was when a packet was captured.
+	 * @param entityId Entity id.
+	 * @param status Recorded status, or null if it was not tracked.
+	 */
+	private void applyStatus(int entityId, SleepStatus status) {
+		LivingEntity entity = entities.get(entityId);
+		if (entity != null && status != null && tracker.getTrackedStatus(entityId) != status) {
+			tracker.setSleepStatus(entity, status);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private Result run() throws Throwable {
+		prepare();
+		Result result = new Result();
+		result.latencies = new long[packets.length];
+		for (int i = 0; i < packets.length; i++) {
+			PacketTrace.Record record = records.get(i);
+			Player player = (Player) entities.get(record.playerId);
+			Object packet = packets[i];
+			if (record.kind == PacketTrace.METADATA) {
+				applyStatus(record.targetId, record.status);
+				List<Object> before = new ArrayList<>((List<Object>) NmsAccess.PACKET_ITEMS.invokeExact(packet));
+				int sizeBefore = wireSize(before);
+
+				long start = System.nanoTime();
+				Object sent = metadataFilter.rewrite(packet, player);
+				long time = System.nanoTime() - start;
+
+				List<Object> after = (List<Object>) NmsAccess.PACKET_ITEMS.invokeExact(sent);
+				int delta = wireSize(after) - sizeBefore;
+				if (sent != packet || !before.equals(after)) {
+					result.rewritten++;
+				}
+				if (sent != packet) {
+					result.copied++;
+				}
+				if (delta > 0) {
+					result.bytesAdded += delta;
+				} else {
+					result.bytesRemoved -= delta;
+				}
+				result.metadataPackets++;
+				result.latencies[i] = time;
+			} else {
+				applyStatus(record.playerId, record.status);
+				long start = System.nanoTime();
+				boolean drop = leaveBedFilter.filter(packet, player);
+				result.latencies[i] = System.nanoTime() - start;
+				if (drop) {
+					result.dropped++;
+				}
+				result.actionPackets++;
+			}
+		}
+		for (long time : result.latencies) {
+			result.totalTime += time;
+		}
+		Arrays.sort(result.latencies);
+		return result;
+	}
+
+	/**
+	 * Estimates how many bytes metadata items take in a packet.
+	 * @param items Items.
+	 * @return Size in bytes.
+	 */
+	private static int wireSize(List<Object> items) {
+		int size = 0;
+		for (Object item : items) {
+			Object value = ((DataWatcher.Item<?>) item).b();
+			size += 2; // Index and serializer id
+			if (value instanceof Optional) {
+				size += ((Optional<?>) value).isPresent() ? 9 : 1; // Flag and packed position
+			} else {
+				size += 1; // Byte or pose
+			}
+		}
+		return size;
+	}
+
+	public static void main(String[] args) throws Throwable {
+		if (args.length < 1) {
+			System.err.println("Usage: TraceReplay <trace file> [passes]");
+			System.exit(1);
+		}
+		List<PacketTrace.Record> records;
+		try {
+			records = PacketTrace.read(Paths.get(args[0]));
+		} catch (IOException e) {
+			System.err.println("Cannot read trace: " + e.getMessage());
+			System.exit(1);
+			return;
+		}
+		if (records.isEmpty()) {
+			System.err.println("Trace is empty");
+			System.exit(1);
+		}
+		int passes = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+		Result result = null;
+		for (int i = 1; i <= passes; i++) {
+			result = new TraceReplay(records).run();
+			System.out.println(String.format(Locale.ROOT, "pass %d: %.0f packets/s", i, packetsPerSecond(result)));
+		}
+
+		long seconds = records.get(records.size() - 1).time / 1_000_000_000L;
+		System.out.println(String.format(Locale.ROOT, "%d packets captured over %d s: %d metadata, %d entity action",
+				records.size(), seconds, result.metadataPackets, result.actionPackets));
+		System.out.println(String.format(Locale.ROOT, "throughput: %.0f packets/s", packetsPerSecond(result)));
+		System.out.println(String.format(Locale.ROOT, "latency: p50 %d ns, p99 %d ns, p99.9 %d ns, max %d ns",
+				result.percentile(0.5), result.percentile(0.99), result.percentile(0.999),
+				result.latencies[result.latencies.length - 1]));
+		System.out.println(String.format(Locale.ROOT, "metadata: %d rewritten, %d copied per observer",
+				result.rewritten, result.copied));
+		System.out.println(String.format(Locale.ROOT, "bytes: %d added, %d removed (estimated)",
+				result.bytesAdded, result.bytesRemoved));
+		System.out.println(String.format(Locale.ROOT, "entity action: %d dropped", result.dropped));
+	}
+
+	private static double packetsPerSecond(Result result) {
+		return result.latencies.length * 1e9 / Math.max(1, result.totalTime);
+	}
+}
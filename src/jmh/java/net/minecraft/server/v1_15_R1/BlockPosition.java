@@ -0,0 +1,28 @@
+package net.minecraft.server.v1_15_R1;
+
+/**
+ * Stand-in for NMS BlockPosition.
+ *
+ */
+public class BlockPosition {
+
+	private final int x, y, z;
+
+	public BlockPosition(int x, int y, int z) {
+		this.x = x;
+		this.y = y;
+		this.z = z;
+	}
+
+	public int getX() {
+		return x;
+	}
+
+	public int getY() {
+		return y;
+	}
+
+	public int getZ() {
+		return z;
+	}
+}
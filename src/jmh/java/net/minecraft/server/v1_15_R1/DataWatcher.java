@@ -0,0 +1,27 @@
+package net.minecraft.server.v1_15_R1;
+
+/**
+ * Stand-in for NMS DataWatcher. Only items are needed.
+ *
+ */
+public class DataWatcher {
+
+	public static class Item<T> {
+
+		private final DataWatcherObject<T> a;
+		private T b;
+
+		public Item(DataWatcherObject<T> object, T value) {
+			this.a = object;
+			this.b = value;
+		}
+
+		public DataWatcherObject<T> a() {
+			return a;
+		}
+
+		public T b() {
+			return b;
+		}
+	}
+}
@@ -0,0 +1,25 @@
+package net.minecraft.server.v1_15_R1;
+
+/**
+ * Stand-in for NMS DataWatcherObject.
+ *
+ * @param <T> Type of value.
+ */
+public class DataWatcherObject<T> {
+
+	private final int a;
+	private final DataWatcherSerializer<T> b;
+
+	public DataWatcherObject(int index, DataWatcherSerializer<T> serializer) {
+		this.a = index;
+		this.b = serializer;
+	}
+
+	public int a() {
+		return a;
+	}
+
+	public DataWatcherSerializer<T> b() {
+		return b;
+	}
+}
@@ -0,0 +1,16 @@
+package net.minecraft.server.v1_15_R1;
+
+import java.util.Optional;
+
+/**
+ * Stand-in for NMS DataWatcherRegistry. Sleeper finds serializers by their
+ * generic types, so only those matter.
+ *
+ */
+public class DataWatcherRegistry {
+
+	public static final DataWatcherSerializer<Byte> a = new DataWatcherSerializer<Byte>() {};
+	public static final DataWatcherSerializer<Integer> b = new DataWatcherSerializer<Integer>() {};
+	public static final DataWatcherSerializer<Optional<BlockPosition>> m = new DataWatcherSerializer<Optional<BlockPosition>>() {};
+	public static final DataWatcherSerializer<EntityPose> s = new DataWatcherSerializer<EntityPose>() {};
+}
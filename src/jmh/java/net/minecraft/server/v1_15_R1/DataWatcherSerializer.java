@@ -0,0 +1,10 @@
+package net.minecraft.server.v1_15_R1;
+
+/**
+ * Stand-in for NMS DataWatcherSerializer. Benchmarks never serialize.
+ *
+ * @param <T> Type of value.
+ */
+public interface DataWatcherSerializer<T> {
+
+}
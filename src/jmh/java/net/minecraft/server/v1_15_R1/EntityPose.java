@@ -0,0 +1,9 @@
+package net.minecraft.server.v1_15_R1;
+
+/**
+ * Stand-in for NMS EntityPose.
+ *
+ */
+public enum EntityPose {
+	STANDING, FALL_FLYING, SLEEPING, SWIMMING, SPIN_ATTACK, CROUCHING, DYING
+}
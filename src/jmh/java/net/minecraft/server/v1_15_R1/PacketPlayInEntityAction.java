@@ -0,0 +1,24 @@
+package net.minecraft.server.v1_15_R1;
+
+/**
+ * Stand-in for NMS entity action packet. Action is the only enum field.
+ *
+ */
+public class PacketPlayInEntityAction {
+
+	public enum EnumPlayerAction {
+		PRESS_SHIFT_KEY, RELEASE_SHIFT_KEY, STOP_SLEEPING, START_SPRINTING, STOP_SPRINTING, START_RIDING_JUMP,
+		STOP_RIDING_JUMP, OPEN_INVENTORY, START_FALL_FLYING
+	}
+
+	private int a;
+	private EnumPlayerAction animation;
+	private int c;
+
+	public PacketPlayInEntityAction() {}
+
+	public PacketPlayInEntityAction(int entityId, EnumPlayerAction action) {
+		this.a = entityId;
+		this.animation = action;
+	}
+}
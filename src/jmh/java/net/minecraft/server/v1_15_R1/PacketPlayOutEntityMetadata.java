@@ -0,0 +1,20 @@
+package net.minecraft.server.v1_15_R1;
+
+import java.util.List;
+
+/**
+ * Stand-in for NMS metadata packet. Has same fields that Sleeper uses.
+ *
+ */
+public class PacketPlayOutEntityMetadata {
+
+	private int a;
+	private List<DataWatcher.Item<?>> b;
+
+	public PacketPlayOutEntityMetadata() {}
+
+	public PacketPlayOutEntityMetadata(int entityId, List<DataWatcher.Item<?>> items) {
+		this.a = entityId;
+		this.b = items;
+	}
+}
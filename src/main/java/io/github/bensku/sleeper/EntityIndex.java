@@ -0,0 +1,119 @@
+package io.github.bensku.sleeper;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+
+import org.bukkit.entity.Entity;
+
+/**
+ * Maps entity ids to entities.
+ *
+ * <p>Only the server thread may modify this index. Lookups are lock-free and
+ * safe from any thread. Every modification copies the index, so this is meant
+ * for sets that change rarely compared to how often they are read, e.g.
+ * online players.
+ *
+ * @param <T> Type of entities.
+ */
+public class EntityIndex<T extends Entity> {
+
+	/**
+	 * Open addressing table. Not modified after it has been published.
+	 */
+	private static class Table {
+
+		final int[] ids;
+		final Object[] entities;
+		int size;
+
+		Table(int capacity) {
+			this.ids = new int[capacity];
+			this.entities = new Object[capacity];
+		}
+
+		int slotOf(int entityId) {
+			int hash = entityId * 0x9E3779B9;
+			return (hash ^ hash >>> 16) & ids.length - 1;
+		}
+
+		void insert(int entityId, Object entity) {
+			int mask = ids.length - 1;
+			int slot = slotOf(entityId);
+			while (entities[slot] != null) {
+				slot = slot + 1 & mask;
+			}
+			ids[slot] = entityId;
+			entities[slot] = entity;
+			size++;
+		}
+	}
+
+	private volatile Table table = new Table(16);
+
+	/**
+	 * Gets an entity by its id.
+	 * @param entityId Entity id.
+	 * @return The entity, or null if it is not in this index.
+	 */
+	@SuppressWarnings("unchecked")
+	public T get(int entityId) {
+		Table table = this.table;
+		int mask = table.ids.length - 1;
+		for (int i = table.slotOf(entityId);; i = i + 1 & mask) {
+			Object entity = table.entities[i];
+			if (entity == null) {
+				return null;
+			} else if (table.ids[i] == entityId) {
+				return (T) entity;
+			}
+		}
+	}
+
+	/**
+	 * Adds an entity to this index, or updates its id if it has changed.
+	 * Must be called from the server thread.
+	 * @param entity Entity to add.
+	 */
+	public void add(T entity) {
+		rebuild(Collections.singleton(entity), Collections.singleton(entity));
+	}
+
+	/**
+	 * Removes an entity from this index. Must be called from the server
+	 * thread.
+	 * @param entity Entity to remove.
+	 */
+	public void remove(T entity) {
+		rebuild(Collections.singleton(entity), Collections.emptyList());
+	}
+
+	/**
+	 * Gets number of entities in this index.
+	 * @return Number of entities.
+	 */
+	public int size() {
+		return table.size;
+	}
+
+	private void rebuild(Set<? extends Entity> removed, Collection<? extends T> added) {
+		Table old = table;
+		int capacity = 16;
+		while (capacity < (old.size + added.size()) * 2) {
+			capacity <<= 1;
+		}
+
+		// Copy everything except the given entities (possibly with old ids)
+		Table copy = new Table(capacity);
+		for (int i = 0; i < old.entities.length; i++) {
+			Object entity = old.entities[i];
+			if (entity != null && !removed.contains(entity)) {
+				copy.insert(old.ids[i], entity);
+			}
+		}
+		for (T entity : added) {
+			copy.insert(entity.getEntityId(), entity);
+		}
+		table = copy; // Publish to readers
+	}
+}
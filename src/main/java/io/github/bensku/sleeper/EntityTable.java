@@ -0,0 +1,197 @@
+package io.github.bensku.sleeper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.bukkit.entity.Entity;
+
+/**
+ * Maps entity ids to entities.
+ *
+ * <p>Only the server thread may modify this table. Lookups are lock-free and
+ * safe from any thread. Unlike {@link EntityIndex}, changes are written to
+ * the table in place, so adding or removing one entity is cheap no matter
+ * how many there are, e.g. with thousands of sleeping NPCs. Internally, this
+ * is an open addressing hash table of immutable entries, like
+ * {@link SleepStateTable}.
+ *
+ * @param <T> Type of entities.
+ */
+public class EntityTable<T extends Entity> {
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	/**
+	 * Entry in a slot. Never modified after it has been published.
+	 *
+	 */
+	private static class Entry {
+
+		final int entityId;
+
+		/**
+		 * The entity, or null if it has been removed. Entity id is kept, so
+		 * that if it is added again, the same slot is reused.
+		 */
+		final Object entity;
+
+		Entry(int entityId, Object entity) {
+			this.entityId = entityId;
+			this.entity = entity;
+		}
+	}
+
+	/**
+	 * Current slots. When the table grows, a new array is published here;
+	 * concurrent readers may finish reading the old one.
+	 */
+	private volatile AtomicReferenceArray<Entry> slots;
+
+	/**
+	 * Slots that are not empty. Only accessed by writer.
+	 */
+	private int usedSlots;
+
+	/**
+	 * Entries that have not been removed. Only accessed by writer.
+	 */
+	private int size;
+
+	public EntityTable() {
+		this.slots = new AtomicReferenceArray<>(INITIAL_CAPACITY);
+	}
+
+	private static int slotOf(int entityId, int mask) {
+		int hash = entityId * 0x9E3779B9;
+		return (hash ^ hash >>> 16) & mask;
+	}
+
+	/**
+	 * Gets an entity by its id.
+	 * @param entityId Entity id.
+	 * @return The entity, or null if it is not in this table.
+	 */
+	@SuppressWarnings("unchecked")
+	public T get(int entityId) {
+		AtomicReferenceArray<Entry> slots = this.slots;
+		int mask = slots.length() - 1;
+		for (int i = slotOf(entityId, mask);; i = i + 1 & mask) {
+			Entry entry = slots.get(i);
+			if (entry == null) {
+				return null; // Not in table
+			} else if (entry.entityId == entityId) {
+				return (T) entry.entity;
+			}
+		}
+	}
+
+	/**
+	 * Adds an entity to this table, replacing any entity that had same id.
+	 * Must be called from the server thread.
+	 * @param entity Entity to add.
+	 */
+	public void add(T entity) {
+		write(entity.getEntityId(), entity);
+	}
+
+	/**
+	 * Removes an entity from this table. Must be called from the server
+	 * thread.
+	 * @param entity Entity to remove.
+	 */
+	public void remove(T entity) {
+		if (get(entity.getEntityId()) == entity) {
+			write(entity.getEntityId(), null);
+		}
+	}
+
+	/**
+	 * Gets number of entities in this table.
+	 * @return Number of entities.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Gets all entities in this table. Must be called from the server
+	 * thread.
+	 * @return A new list of entities.
+	 */
+	@SuppressWarnings("unchecked")
+	public List<T> getAll() {
+		AtomicReferenceArray<Entry> slots = this.slots;
+		List<T> entities = new ArrayList<>(size);
+		for (int i = 0; i < slots.length(); i++) {
+			Entry entry = slots.get(i);
+			if (entry != null && entry.entity != null) {
+				entities.add((T) entry.entity);
+			}
+		}
+		return entities;
+	}
+
+	private void write(int entityId, Object entity) {
+		AtomicReferenceArray<Entry> slots = this.slots;
+		int mask = slots.length() - 1;
+		for (int i = slotOf(entityId, mask);; i = i + 1 & mask) {
+			Entry entry = slots.get(i);
+			if (entry == null) {
+				if (entity == null) {
+					return; // Nothing to remove
+				}
+				if ((usedSlots + 1) * 2 > slots.length()) {
+					// Keep load factor under 0.5 so that probe sequences stay short
+					rehash(size + 1);
+					write(entityId, entity);
+					return;
+				}
+				usedSlots++;
+				size++;
+				slots.set(i, new Entry(entityId, entity));
+				return;
+			} else if (entry.entityId == entityId) {
+				if (entry.entity == null && entity != null) {
+					size++;
+				} else if (entry.entity != null && entity == null) {
+					size--;
+				}
+				slots.set(i, new Entry(entityId, entity));
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Copies live entries to a new slot array and publishes it.
+	 * @param expectedSize Expected number of entries.
+	 */
+	private void rehash(int expectedSize) {
+		int capacity = INITIAL_CAPACITY;
+		while (capacity < expectedSize * 4) {
+			capacity <<= 1;
+		}
+
+		AtomicReferenceArray<Entry> oldSlots = slots;
+		AtomicReferenceArray<Entry> newSlots = new AtomicReferenceArray<>(capacity);
+		int mask = capacity - 1;
+		int count = 0;
+		for (int i = 0; i < oldSlots.length(); i++) {
+			Entry entry = oldSlots.get(i);
+			if (entry == null || entry.entity == null) {
+				continue; // Drop removed entries here
+			}
+			int slot = slotOf(entry.entityId, mask);
+			while (newSlots.get(slot) != null) {
+				slot = slot + 1 & mask;
+			}
+			newSlots.set(slot, entry);
+			count++;
+		}
+
+		usedSlots = count;
+		size = count;
+		this.slots = newSlots; // Publish to readers
+	}
+}
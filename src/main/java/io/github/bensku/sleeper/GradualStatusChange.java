@@ -0,0 +1,74 @@
+package io.github.bensku.sleeper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.bukkit.entity.Player;
+import org.bukkit.scheduler.BukkitRunnable;
+
+/**
+ * Changes sleep status of many players over multiple ticks, spending at
+ * most a given amount of time per tick.
+ *
+ */
+class GradualStatusChange extends BukkitRunnable {
+
+	/**
+	 * How many players are changed with one batch event. Time budget is
+	 * checked between batches.
+	 */
+	private static final int BATCH_SIZE = 16;
+
+	private final SleeperApi api;
+	private final List<Player> players;
+	private final SleepStatus status;
+	private final long budgetNanos;
+
+	private final List<Player> changed;
+	private final CompletableFuture<List<Player>> result;
+
+	/**
+	 * Index of next player to process.
+	 */
+	private int next;
+
+	GradualStatusChange(SleeperApi api, List<Player> players, SleepStatus status, long budgetNanos) {
+		this.api = api;
+		this.players = players;
+		this.status = status;
+		this.budgetNanos = budgetNanos;
+		this.changed = new ArrayList<>();
+		this.result = new CompletableFuture<>();
+	}
+
+	/**
+	 * Gets result of this operation.
+	 * @return Future that completes on server thread with players whose
+	 * status was changed.
+	 */
+	public CompletableFuture<List<Player>> getResult() {
+		return result;
+	}
+
+	@Override
+	public void run() {
+		long deadline = System.nanoTime() + budgetNanos;
+		List<Player> batch = new ArrayList<>(BATCH_SIZE);
+		do { // Process at least one batch per tick, no matter what
+			batch.clear();
+			while (batch.size() < BATCH_SIZE && next < players.size()) {
+				Player player = players.get(next++);
+				if (player.isOnline()) { // Might've quit while we were busy
+					batch.add(player);
+				}
+			}
+			changed.addAll(api.setSleepStatus(batch, status));
+		} while (next < players.size() && System.nanoTime() - deadline < 0);
+
+		if (next == players.size()) {
+			cancel();
+			result.complete(changed);
+		}
+	}
+}
@@ -0,0 +1,131 @@
+package io.github.bensku.sleeper;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+
+import org.bukkit.entity.LivingEntity;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitRunnable;
+
+/**
+ * Collects requests from any thread and executes them on server thread,
+ * once per tick. Status changes requested during a tick are applied
+ * together, with one batch change per status.
+ *
+ */
+class MainThreadQueue extends BukkitRunnable implements Executor {
+
+	/**
+	 * Request to change sleep status.
+	 *
+	 */
+	private static class StatusRequest {
+
+		final LivingEntity entity;
+		final SleepStatus status;
+		final CompletableFuture<Boolean> result;
+
+		StatusRequest(LivingEntity entity, SleepStatus status) {
+			this.entity = entity;
+			this.status = status;
+			this.result = new CompletableFuture<>();
+		}
+	}
+
+	private final SleeperApi api;
+	private final Plugin plugin;
+
+	private final Queue<StatusRequest> statusRequests;
+	private final Queue<Runnable> tasks;
+
+	MainThreadQueue(SleeperApi api, Plugin plugin) {
+		this.api = api;
+		this.plugin = plugin;
+		this.statusRequests = new ConcurrentLinkedQueue<>();
+		this.tasks = new ConcurrentLinkedQueue<>();
+	}
+
+	/**
+	 * Requests sleep status of an entity to be changed. Safe to call from
+	 * any thread.
+	 * @param entity Player or other living entity.
+	 * @param status New status.
+	 * @return Future that completes on server thread, with true if the
+	 * entity has the requested status after the change.
+	 */
+	CompletableFuture<Boolean> setSleepStatus(LivingEntity entity, SleepStatus status) {
+		StatusRequest request = new StatusRequest(entity, status);
+		statusRequests.offer(request);
+		return request.result;
+	}
+
+	/**
+	 * Executes a task on server thread, at latest during next tick. Safe to
+	 * call from any thread.
+	 * @param task Task to execute.
+	 */
+	@Override
+	public void execute(Runnable task) {
+		tasks.offer(task);
+	}
+
+	@Override
+	public void run() {
+		if (!statusRequests.isEmpty()) {
+			processStatusRequests();
+		}
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			try {
+				task.run();
+			} catch (Throwable e) {
+				plugin.getLogger().log(Level.SEVERE, "async request failed", e);
+			}
+		}
+	}
+
+	private void processStatusRequests() {
+		// If same entity was changed many times, only last change matters
+		Map<LivingEntity, List<StatusRequest>> requests = new LinkedHashMap<>();
+		StatusRequest request;
+		while ((request = statusRequests.poll()) != null) {
+			requests.computeIfAbsent(request.entity, e -> new ArrayList<>()).add(request);
+		}
+
+		// Change statuses in batches
+		Map<SleepStatus, List<LivingEntity>> batches = new EnumMap<>(SleepStatus.class);
+		for (List<StatusRequest> changes : requests.values()) {
+			StatusRequest latest = changes.get(changes.size() - 1);
+			if (latest.entity.isValid()) {
+				batches.computeIfAbsent(latest.status, s -> new ArrayList<>()).add(latest.entity);
+			}
+		}
+		for (Map.Entry<SleepStatus, List<LivingEntity>> batch : batches.entrySet()) {
+			try {
+				api.setEntitySleepStatus(batch.getValue(), batch.getKey());
+			} catch (Throwable e) {
+				// Other batches may have been applied; only fail this one
+				for (LivingEntity entity : batch.getValue()) {
+					for (StatusRequest failed : requests.remove(entity)) {
+						failed.result.completeExceptionally(e);
+					}
+				}
+			}
+		}
+
+		// Changes might have been cancelled by event handlers
+		for (List<StatusRequest> changes : requests.values()) {
+			for (StatusRequest done : changes) {
+				done.result.complete(done.entity.isValid() && api.getSleepStatus(done.entity) == done.status);
+			}
+		}
+	}
+}
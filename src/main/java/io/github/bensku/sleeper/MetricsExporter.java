@@ -0,0 +1,58 @@
+package io.github.bensku.sleeper;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.logging.Level;
+
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitRunnable;
+
+import io.github.bensku.sleeper.filter.FilterMetrics;
+
+/**
+ * Periodically writes filter metrics to a file in Prometheus text format.
+ * Should be run asynchronously; nothing here needs server thread.
+ *
+ */
+class MetricsExporter extends BukkitRunnable {
+
+	private final Plugin plugin;
+	private final FilterMetrics metrics;
+	private final Path file;
+
+	/**
+	 * If last write failed. Failures are logged once until a write
+	 * succeeds again.
+	 */
+	private boolean failed;
+
+	MetricsExporter(Plugin plugin, FilterMetrics metrics, Path file) {
+		this.plugin = plugin;
+		this.metrics = metrics;
+		this.file = file;
+	}
+
+	@Override
+	public void run() {
+		// Write to temporary file and move it in place, so that scrapers
+		// never see a partially written file
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		try {
+			Files.createDirectories(file.getParent());
+			try (Writer out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+				metrics.writePrometheus(out);
+			}
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			failed = false;
+		} catch (IOException e) {
+			if (!failed) {
+				plugin.getLogger().log(Level.WARNING, "failed to write metrics to " + file, e);
+			}
+			failed = true;
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package io.github.bensku.sleeper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+import org.bukkit.scheduler.BukkitRunnable;
+
+/**
+ * Skips night in worlds where enough players are sleeping. Unlike vanilla
+ * night skip, this counts players that are sleeping only because of us.
+ * Runs once per tick, checking each world in constant time.
+ *
+ */
+class NightSkipTask extends BukkitRunnable {
+
+	/**
+	 * How long enough players must have been sleeping before night is
+	 * skipped. Same as in vanilla.
+	 */
+	private static final int SKIP_DELAY = 100;
+
+	private static final long DAY_LENGTH = 24000;
+	private static final long NIGHT_START = 12541;
+	private static final long NIGHT_END = 23458;
+
+	private final SleeperApi api;
+	private final SleepCounter counter;
+
+	/**
+	 * Percentage of players that must be sleeping.
+	 */
+	private final int percentage;
+
+	NightSkipTask(SleeperApi api, SleepCounter counter, int percentage) {
+		this.api = api;
+		this.counter = counter;
+		this.percentage = percentage;
+	}
+
+	@Override
+	public void run() {
+		for (SleepCounter.Counts counts : counter.getAll()) {
+			if (counts.getSleepers() == 0 || !canSkip(counts)) {
+				counts.skipTicks = 0;
+			} else if (++counts.skipTicks >= SKIP_DELAY) {
+				counts.skipTicks = 0;
+				skipNight(counts.world);
+			}
+		}
+	}
+
+	private boolean canSkip(SleepCounter.Counts counts) {
+		if (counts.getSleepers() * 100L < (long) percentage * counts.players) {
+			return false; // Not enough sleepers
+		}
+		World world = counts.world;
+		if (world.getEnvironment() != World.Environment.NORMAL) {
+			return false; // No day or night here
+		}
+		long time = world.getTime();
+		return time >= NIGHT_START && time <= NIGHT_END || world.isThundering();
+	}
+
+	private void skipNight(World world) {
+		// Morning of next day, like in vanilla
+		long time = world.getFullTime() + DAY_LENGTH;
+		world.setFullTime(time - time % DAY_LENGTH);
+		world.setStorm(false);
+		world.setThundering(false);
+		world.setWeatherDuration(0);
+
+		// Naturally sleeping players wake up; forced sleep continues
+		List<Player> sleepers = new ArrayList<>();
+		for (Player player : world.getPlayers()) {
+			if (api.getSleepStatus(player) == SleepStatus.SLEEPING) {
+				sleepers.add(player);
+			}
+		}
+		for (Player player : sleepers) {
+			api.attemptWakeUp(player);
+		}
+	}
+}
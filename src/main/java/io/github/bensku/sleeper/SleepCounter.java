@@ -0,0 +1,141 @@
+package io.github.bensku.sleeper;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.bukkit.GameMode;
+import org.bukkit.World;
+
+/**
+ * Counts players and sleepers in each world. Counts are updated as
+ * statuses change and players move between worlds, so reading them never
+ * requires going through players. Like in vanilla, spectators are not
+ * counted. Only accessed from server thread.
+ *
+ */
+class SleepCounter {
+
+	/**
+	 * Counts of one world.
+	 *
+	 */
+	static class Counts {
+
+		final World world;
+		int players;
+		int sleeping;
+		int forcedSleep;
+
+		/**
+		 * For how many ticks conditions for skipping night have been met.
+		 * Managed by {@link NightSkipTask}.
+		 */
+		int skipTicks;
+
+		Counts(World world) {
+			this.world = world;
+		}
+
+		/**
+		 * Gets number of players that are sleeping in any way.
+		 * @return Number of sleepers.
+		 */
+		int getSleepers() {
+			return sleeping + forcedSleep;
+		}
+
+		void add(SleepStatus status, int delta) {
+			if (status == SleepStatus.SLEEPING) {
+				sleeping += delta;
+			} else if (status == SleepStatus.FORCED_SLEEP) {
+				forcedSleep += delta;
+			}
+		}
+	}
+
+	private final Map<World, Counts> counts = new HashMap<>();
+
+	/**
+	 * Checks if a player in given game mode is counted.
+	 * @param mode Game mode.
+	 * @return If players in the mode are counted.
+	 */
+	static boolean isCounted(GameMode mode) {
+		return mode != GameMode.SPECTATOR;
+	}
+
+	/**
+	 * Gets counts of a world.
+	 * @param world World.
+	 * @return Counts, or null if nobody has been in the world.
+	 */
+	Counts get(World world) {
+		return counts.get(world);
+	}
+
+	/**
+	 * Gets counts of all worlds that players have been in.
+	 * @return Counts of worlds.
+	 */
+	Collection<Counts> getAll() {
+		return counts.values();
+	}
+
+	private Counts getOrCreate(World world) {
+		return counts.computeIfAbsent(world, Counts::new);
+	}
+
+	/**
+	 * Adds a player to a world.
+	 * @param world World.
+	 * @param status Sleep status of the player.
+	 */
+	void addPlayer(World world, SleepStatus status) {
+		Counts c = getOrCreate(world);
+		c.players++;
+		c.add(status, 1);
+	}
+
+	/**
+	 * Removes a player from a world.
+	 * @param world World.
+	 * @param status Sleep status of the player.
+	 */
+	void removePlayer(World world, SleepStatus status) {
+		Counts c = getOrCreate(world);
+		c.players--;
+		c.add(status, -1);
+	}
+
+	/**
+	 * Moves a player from a world to another.
+	 * @param from Previous world.
+	 * @param to New world.
+	 * @param status Sleep status of the player.
+	 */
+	void changeWorld(World from, World to, SleepStatus status) {
+		removePlayer(from, status);
+		addPlayer(to, status);
+	}
+
+	/**
+	 * Changes sleep status of a player in a world.
+	 * @param world World.
+	 * @param oldStatus Previous status.
+	 * @param newStatus New status.
+	 */
+	void changeStatus(World world, SleepStatus oldStatus, SleepStatus newStatus) {
+		Counts c = getOrCreate(world);
+		c.add(oldStatus, -1);
+		c.add(newStatus, 1);
+	}
+
+	/**
+	 * Forgets a world that has been unloaded.
+	 * @param world World.
+	 */
+	void removeWorld(World world) {
+		counts.remove(world);
+	}
+}
@@ -0,0 +1,170 @@
+package io.github.bensku.sleeper;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Sleep statuses of entities, indexed by their entity ids.
+ *
+ * <p>Only the server thread may write to this table. Reading is wait-free
+ * and safe from any thread, including Netty I/O threads that filter packets.
+ * Internally, this is an open addressing hash table where each slot is a
+ * single long: entity id in high bits, state in low bits. Readers thus
+ * always see either an empty slot or a complete entry.
+ *
+ */
+public class SleepStateTable {
+
+	private static final SleepStatus[] STATUS_ARRAY = SleepStatus.values();
+
+	/**
+	 * State of a slot that has never been used.
+	 */
+	private static final int EMPTY = 0;
+
+	/**
+	 * State of a slot whose entity has been removed. The entity id is kept,
+	 * so that if it is added again, the same slot is reused.
+	 */
+	private static final int REMOVED = -1;
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	/**
+	 * Current slots. When the table grows, a new array is published here;
+	 * concurrent readers may finish reading the old one.
+	 */
+	private volatile AtomicLongArray slots;
+
+	/**
+	 * Slots that are not {@link #EMPTY}. Only accessed by writer.
+	 */
+	private int usedSlots;
+
+	/**
+	 * Entries that are not {@link #REMOVED}. Only accessed by writer.
+	 */
+	private int size;
+
+	public SleepStateTable() {
+		this.slots = new AtomicLongArray(INITIAL_CAPACITY);
+	}
+
+	private static int slotOf(int entityId, int mask) {
+		// Entity ids are sequential; spread them over the table
+		int hash = entityId * 0x9E3779B9;
+		return (hash ^ hash >>> 16) & mask;
+	}
+
+	private static long entry(int entityId, int state) {
+		return (long) entityId << 32 | state & 0xffffffffL;
+	}
+
+	/**
+	 * Gets sleep status of an entity.
+	 * @param entityId Entity id.
+	 * @return Sleep status, or null if there is no entry for the entity.
+	 */
+	public SleepStatus get(int entityId) {
+		AtomicLongArray slots = this.slots;
+		int mask = slots.length() - 1;
+		for (int i = slotOf(entityId, mask);; i = i + 1 & mask) {
+			long entry = slots.get(i);
+			int state = (int) entry;
+			if (state == EMPTY) {
+				return null; // Not in table
+			} else if ((int) (entry >>> 32) == entityId) {
+				return state == REMOVED ? null : STATUS_ARRAY[state - 1];
+			}
+		}
+	}
+
+	/**
+	 * Sets sleep status of an entity. Must be called from the server thread.
+	 * @param entityId Entity id.
+	 * @param status New sleep status.
+	 */
+	public void put(int entityId, SleepStatus status) {
+		write(entityId, status.ordinal() + 1);
+	}
+
+	/**
+	 * Removes entry of an entity. Must be called from the server thread.
+	 * @param entityId Entity id.
+	 */
+	public void remove(int entityId) {
+		write(entityId, REMOVED);
+	}
+
+	/**
+	 * Gets number of entries in this table.
+	 * @return Number of entries.
+	 */
+	public int size() {
+		return size;
+	}
+
+	private void write(int entityId, int state) {
+		AtomicLongArray slots = this.slots;
+		int mask = slots.length() - 1;
+		for (int i = slotOf(entityId, mask);; i = i + 1 & mask) {
+			long entry = slots.get(i);
+			int oldState = (int) entry;
+			if (oldState == EMPTY) {
+				if (state == REMOVED) {
+					return; // Nothing to remove
+				}
+				if ((usedSlots + 1) * 2 > slots.length()) {
+					// Keep load factor under 0.5 so that probe sequences stay short
+					rehash(size + 1);
+					write(entityId, state);
+					return;
+				}
+				usedSlots++;
+				size++;
+				slots.set(i, entry(entityId, state));
+				return;
+			} else if ((int) (entry >>> 32) == entityId) {
+				if (oldState == REMOVED && state != REMOVED) {
+					size++;
+				} else if (oldState != REMOVED && state == REMOVED) {
+					size--;
+				}
+				slots.set(i, entry(entityId, state));
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Copies live entries to a new slot array and publishes it.
+	 * @param expectedSize Expected number of entries.
+	 */
+	private void rehash(int expectedSize) {
+		int capacity = INITIAL_CAPACITY;
+		while (capacity < expectedSize * 4) {
+			capacity <<= 1;
+		}
+
+		AtomicLongArray oldSlots = slots;
+		AtomicLongArray newSlots = new AtomicLongArray(capacity);
+		int mask = capacity - 1;
+		int count = 0;
+		for (int i = 0; i < oldSlots.length(); i++) {
+			long entry = oldSlots.get(i);
+			int state = (int) entry;
+			if (state == EMPTY || state == REMOVED) {
+				continue; // Drop removed entries here
+			}
+			int slot = slotOf((int) (entry >>> 32), mask);
+			while (newSlots.get(slot) != 0) {
+				slot = slot + 1 & mask;
+			}
+			newSlots.set(slot, entry);
+			count++;
+		}
+
+		usedSlots = count;
+		size = count;
+		this.slots = newSlots; // Publish to readers
+	}
+}
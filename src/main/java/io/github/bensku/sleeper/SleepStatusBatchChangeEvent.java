@@ -0,0 +1,119 @@
+package io.github.bensku.sleeper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.bukkit.entity.Player;
+import org.bukkit.event.Cancellable;
+import org.bukkit.event.Event;
+import org.bukkit.event.HandlerList;
+
+/**
+ * Called when sleep status of many players is changed at once. This is
+ * called instead of {@link SleepStatusChangeEvent}s for individual players.
+ * Changes can be cancelled for the whole batch or for individual players.
+ *
+ */
+public class SleepStatusBatchChangeEvent extends Event implements Cancellable {
+
+	private static final HandlerList handlers = new HandlerList();
+
+	private final Map<Player, SleepStatus> oldStatuses;
+	private final SleepStatus newStatus;
+	private final Set<Player> cancelledPlayers;
+	private boolean cancel;
+
+	/**
+	 * Creates a new batch change event.
+	 * @param oldStatuses Players whose status is changing, mapped to their
+	 * current statuses. Should have a predictable iteration order.
+	 * @param newStatus New status for all of the players.
+	 */
+	public SleepStatusBatchChangeEvent(Map<Player, SleepStatus> oldStatuses, SleepStatus newStatus) {
+		this.oldStatuses = oldStatuses;
+		this.newStatus = newStatus;
+		this.cancelledPlayers = new HashSet<>();
+		this.cancel = false;
+	}
+
+	/**
+	 * Gets all players whose status is changing, including ones for whom the
+	 * change has been cancelled.
+	 * @return Unmodifiable set of players.
+	 */
+	public Set<Player> getPlayers() {
+		return Collections.unmodifiableSet(oldStatuses.keySet());
+	}
+
+	/**
+	 * Gets players whose status will actually change, unless the event is
+	 * cancelled as a whole.
+	 * @return New list of players.
+	 */
+	public List<Player> getAffectedPlayers() {
+		List<Player> players = new ArrayList<>(oldStatuses.size() - cancelledPlayers.size());
+		for (Player player : oldStatuses.keySet()) {
+			if (!cancelledPlayers.contains(player)) {
+				players.add(player);
+			}
+		}
+		return players;
+	}
+
+	public SleepStatus getOldStatus(Player player) {
+		return oldStatuses.get(player);
+	}
+
+	public SleepStatus getNewStatus() {
+		return newStatus;
+	}
+
+	/**
+	 * Checks if status change has been cancelled for a player.
+	 * @param player Player.
+	 * @return If change will not happen for the player.
+	 */
+	public boolean isCancelled(Player player) {
+		return cancel || cancelledPlayers.contains(player);
+	}
+
+	/**
+	 * Cancels or un-cancels status change for one player.
+	 * @param player Player that is in this batch.
+	 * @param cancel If the change should be cancelled.
+	 */
+	public void setCancelled(Player player, boolean cancel) {
+		if (!oldStatuses.containsKey(player)) {
+			throw new IllegalArgumentException("player " + player.getName() + " is not in this batch");
+		}
+		if (cancel) {
+			cancelledPlayers.add(player);
+		} else {
+			cancelledPlayers.remove(player);
+		}
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return cancel;
+	}
+
+	@Override
+	public void setCancelled(boolean cancel) {
+		this.cancel = cancel;
+	}
+
+	@Override
+	public HandlerList getHandlers() {
+		return handlers;
+	}
+
+    public static HandlerList getHandlerList() {
+        return handlers;
+    }
+
+}
@@ -1,20 +1,211 @@
 package io.github.bensku.sleeper;
 
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import org.bukkit.GameMode;
 import org.bukkit.NamespacedKey;
+import org.bukkit.World;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.LivingEntity;
 import org.bukkit.entity.Player;
 import org.bukkit.persistence.PersistentDataType;
+import org.bukkit.plugin.Plugin;
 
+/**
+ * Tracks sleep statuses of online players and loaded living entities.
+ * Statuses are kept in an in-memory {@link SleepStateTable}, so reads are
+ * cheap and safe from packet threads. Changes are written to entity data
+ * later, in batches: for players, once per tick, since server saves player
+ * data before it saves worlds; for other entities, when they are unloaded
+ * or their world is saved.
+ *
+ */
 public class SleepTracker {
 
 	private static final SleepStatus[] STATUS_ARRAY = SleepStatus.values();
-	private static final NamespacedKey SLEEP_STATUS = SleeperPlugin.createKey("sleep_status");
-	
-	public SleepStatus getSleepStatus(Player player) {
-		Byte status = player.getPersistentDataContainer().get(SLEEP_STATUS, PersistentDataType.BYTE);
-		return status != null ? STATUS_ARRAY[status] : SleepStatus.AWAKE;
-	}
-	
-	public void setSleepStatus(Player player, SleepStatus status) {
-		player.getPersistentDataContainer().set(SLEEP_STATUS, PersistentDataType.BYTE, (byte) status.ordinal());
+
+	/**
+	 * Key of sleep status in persistent data.
+	 */
+	private final NamespacedKey sleepStatusKey;
+
+	private final SleepStateTable states = new SleepStateTable();
+	private final SleepCounter counter;
+	private final SleeperGrid grid;
+
+	/**
+	 * Entities whose status has changed since it was last saved.
+	 */
+	private final Set<LivingEntity> dirty = new HashSet<>();
+
+	/**
+	 * Players whose status has changed since it was last saved.
+	 */
+	private final Set<Player> dirtyPlayers = new HashSet<>();
+
+	SleepTracker(Plugin plugin, SleepCounter counter, SleeperGrid grid) {
+		this.sleepStatusKey = new NamespacedKey(plugin, "sleep_status");
+		this.counter = counter;
+		this.grid = grid;
+	}
+
+	public SleepStatus getSleepStatus(Entity entity) {
+		return getSleepStatus(entity.getEntityId());
+	}
+
+	/**
+	 * Gets sleep status by entity id. Safe to call from any thread.
+	 * @param entityId Entity id of a player or other living entity.
+	 * @return Sleep status.
+	 */
+	public SleepStatus getSleepStatus(int entityId) {
+		SleepStatus status = states.get(entityId);
+		return status != null ? status : SleepStatus.AWAKE;
+	}
+
+	/**
+	 * Gets sleep status by entity id, but only if it has been changed or
+	 * loaded during this session. Safe to call from any thread.
+	 * @param entityId Entity id of a player or other living entity.
+	 * @return Sleep status, or null if the entity has never been anything
+	 * but awake.
+	 */
+	public SleepStatus getTrackedStatus(int entityId) {
+		return states.get(entityId);
+	}
+
+	public void setSleepStatus(LivingEntity entity, SleepStatus status) {
+		if (entity instanceof Player) { // Only players are counted and indexed
+			Player player = (Player) entity;
+			if (SleepCounter.isCounted(player.getGameMode())) {
+				counter.changeStatus(player.getWorld(), getSleepStatus(player), status);
+			}
+			if (status == SleepStatus.AWAKE) {
+				grid.remove(player);
+			} else {
+				grid.add(player);
+			}
+		}
+		states.put(entity.getEntityId(), status);
+		if (entity instanceof Player) { // Save later
+			dirtyPlayers.add((Player) entity);
+		} else {
+			dirty.add(entity);
+		}
+	}
+
+	/**
+	 * Saves status of an entity to its entity data, if it has changed.
+	 * @param entity Player or other living entity.
+	 */
+	public void save(LivingEntity entity) {
+		if (entity instanceof Player ? dirtyPlayers.remove(entity) : dirty.remove(entity)) {
+			write(entity);
+		}
+	}
+
+	/**
+	 * Saves statuses of players that have changed. Called once per tick, so
+	 * that they are in player data when server saves it.
+	 */
+	public void savePlayers() {
+		if (dirtyPlayers.isEmpty()) {
+			return;
+		}
+		for (Player player : dirtyPlayers) {
+			write(player);
+		}
+		dirtyPlayers.clear();
+	}
+
+	/**
+	 * Saves statuses of entities other than players that have changed in
+	 * a world.
+	 * @param world World.
+	 */
+	public void saveAll(World world) {
+		Iterator<LivingEntity> it = dirty.iterator();
+		while (it.hasNext()) {
+			LivingEntity entity = it.next();
+			if (entity.getWorld() == world) {
+				it.remove();
+				write(entity);
+			}
+		}
+	}
+
+	/**
+	 * Saves all statuses that have changed.
+	 */
+	public void saveAll() {
+		savePlayers();
+		for (LivingEntity entity : dirty) {
+			write(entity);
+		}
+		dirty.clear();
+	}
+
+	private void write(LivingEntity entity) {
+		SleepStatus status = getSleepStatus(entity);
+		entity.getPersistentDataContainer().set(sleepStatusKey, PersistentDataType.BYTE, (byte) status.ordinal());
+	}
+
+	/**
+	 * Loads persisted sleep status of a player that has just joined, or an
+	 * entity that has just been loaded.
+	 * @param entity Player or other living entity.
+	 * @return If the entity is sleeping.
+	 */
+	public boolean load(LivingEntity entity) {
+		Byte status = entity.getPersistentDataContainer().get(sleepStatusKey, PersistentDataType.BYTE);
+		boolean sleeping = status != null && status != SleepStatus.AWAKE.ordinal();
+		if (sleeping) {
+			states.put(entity.getEntityId(), STATUS_ARRAY[status]);
+		}
+		if (entity instanceof Player) {
+			Player player = (Player) entity;
+			if (sleeping) {
+				grid.add(player);
+			}
+			if (SleepCounter.isCounted(player.getGameMode())) {
+				counter.addPlayer(player.getWorld(), getSleepStatus(player));
+			}
+		}
+		return sleeping;
+	}
+
+	/**
+	 * Updates sleeper counts of a player whose game mode is about to change.
+	 * @param player Player.
+	 * @param newMode New game mode.
+	 */
+	public void changeGameMode(Player player, GameMode newMode) {
+		boolean wasCounted = SleepCounter.isCounted(player.getGameMode());
+		boolean counted = SleepCounter.isCounted(newMode);
+		if (wasCounted && !counted) {
+			counter.removePlayer(player.getWorld(), getSleepStatus(player));
+		} else if (!wasCounted && counted) {
+			counter.addPlayer(player.getWorld(), getSleepStatus(player));
+		}
+	}
+
+	/**
+	 * Saves and forgets sleep status of a player that is leaving, or an
+	 * entity that is being unloaded or has died. It will still be available
+	 * in their entity data.
+	 * @param entity Player or other living entity.
+	 */
+	public void unload(LivingEntity entity) {
+		save(entity);
+		if (entity instanceof Player) {
+			Player player = (Player) entity;
+			if (SleepCounter.isCounted(player.getGameMode())) {
+				counter.removePlayer(player.getWorld(), getSleepStatus(player));
+			}
+			grid.remove(player);
+		}
+		states.remove(entity.getEntityId());
 	}
 }
@@ -1,14 +1,33 @@
 package io.github.bensku.sleeper;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
 import org.bukkit.Bukkit;
 import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.LivingEntity;
 import org.bukkit.entity.Player;
 import org.bukkit.event.player.PlayerBedEnterEvent;
 import org.bukkit.event.player.PlayerBedLeaveEvent;
 import org.bukkit.event.player.PlayerBedEnterEvent.BedEnterResult;
 import org.bukkit.event.player.PlayerTeleportEvent.TeleportCause;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.util.BoundingBox;
 
 import io.github.bensku.sleeper.filter.MetadataPacketFilter;
+import io.github.bensku.sleeper.jfr.FlightRecorderSupport;
+import io.github.bensku.sleeper.jfr.SetSleepStatusEvent;
 
 public class SleeperApi {
 
@@ -25,12 +44,60 @@ public class SleeperApi {
 		return instance;
 	}
 	
+	/**
+	 * Paper's Entity#teleportAsync(Location, TeleportCause), or null when
+	 * the server doesn't have it.
+	 */
+	private static final MethodHandle TELEPORT_ASYNC = findTeleportAsync();
+	
+	private static MethodHandle findTeleportAsync() {
+		try {
+			return MethodHandles.publicLookup().findVirtual(Entity.class, "teleportAsync",
+					MethodType.methodType(CompletableFuture.class, Location.class, TeleportCause.class));
+		} catch (NoSuchMethodException | IllegalAccessException e) {
+			return null; // Not Paper, teleports will be synchronous
+		}
+	}
+	
 	private final SleepTracker sleepTracker;
+	private final SleepCounter counter;
+	private final SleeperGrid grid;
+	private final EntityTable<LivingEntity> entities;
 	private final MetadataPacketFilter metadataFilter;
 	
-	SleeperApi(SleepTracker sleepTracker, MetadataPacketFilter metadataFilter) {
+	/**
+	 * Default time budget per tick for gradual operations, in nanoseconds.
+	 */
+	private final long tickBudget;
+	
+	/**
+	 * Scheduled wake-ups.
+	 */
+	private final WakeUpWheel wakeUps;
+	
+	/**
+	 * Requests from other threads.
+	 */
+	private final MainThreadQueue mainThread;
+	
+	SleeperApi(Plugin plugin, SleepTracker sleepTracker, SleepCounter counter, SleeperGrid grid,
+			EntityTable<LivingEntity> entities, MetadataPacketFilter metadataFilter, long tickBudget) {
 		this.sleepTracker = sleepTracker;
+		this.counter = counter;
+		this.grid = grid;
+		this.entities = entities;
 		this.metadataFilter = metadataFilter;
+		this.tickBudget = tickBudget;
+		this.wakeUps = new WakeUpWheel(this);
+		this.mainThread = new MainThreadQueue(this, plugin);
+	}
+	
+	WakeUpWheel getWakeUps() {
+		return wakeUps;
+	}
+	
+	MainThreadQueue getMainThreadQueue() {
+		return mainThread;
 	}
 	
 	/**
@@ -43,7 +110,8 @@ public class SleeperApi {
 	}
 	
 	/**
-	 * Gets the current sleep status of a player.
+	 * Gets the current sleep status of a player. Like methods that end with
+	 * Async, this can be safely called from any thread.
 	 * @param player A player.
 	 * @return Sleep status of the player.
 	 */
@@ -55,6 +123,10 @@ public class SleeperApi {
 	 * Sets the current sleep status of a player. This will call a
 	 * {@link SleepStatusChangeEvent} that can be cancelled. There are no other
 	 * conditions for directly setting the sleep status.
+	 * 
+	 * <p>The new status is visible through this API immediately, but other
+	 * players see it at end of current tick. Use {@link #flushUpdates()} if
+	 * that is too late.
 	 * @param player A player.
 	 * @param status New sleep status for the player.
 	 */
@@ -66,18 +138,389 @@ public class SleeperApi {
 			return;
 		}
 		
+		SetSleepStatusEvent recording = FlightRecorderSupport.AVAILABLE
+				? SetSleepStatusEvent.start(player.getEntityId(), player.getType(), oldStatus, status) : null;
+		
 		// Call event for other plugins
 		SleepStatusChangeEvent event = new SleepStatusChangeEvent(player, oldStatus, status);
 		Bukkit.getPluginManager().callEvent(event);
 		if (event.isCancelled()) {
+			if (recording != null) {
+				recording.cancelled = true;
+				recording.commit();
+			}
 			return; // Don't change status if another plugin cancelled
 		}
 		
 		// Store new sleep status
 		sleepTracker.setSleepStatus(player, status);
 		
-		// Force new status to be updated to players
-		metadataFilter.forceUpdate(player);
+		// Update new status to players at end of tick
+		// If it changes again before that, only the last change is sent
+		metadataFilter.scheduleUpdate(player);
+		if (recording != null) {
+			recording.observers = metadataFilter.getObservers(player).size();
+			recording.commit();
+		}
+	}
+	
+	/**
+	 * Gets the current sleep status of a living entity. Safe to call from
+	 * any thread.
+	 * @param entity A player or other living entity.
+	 * @return Sleep status of the entity.
+	 */
+	public SleepStatus getSleepStatus(LivingEntity entity) {
+		return sleepTracker.getSleepStatus(entity);
+	}
+	
+	/**
+	 * Sets the sleep status of a living entity, e.g. a villager or an NPC.
+	 * For players, this is same as {@link #setSleepStatus(Player, SleepStatus)}.
+	 * For other entities, no events are called. Status of an entity is
+	 * kept until it dies, even if it is unloaded in between.
+	 * @param entity A living entity.
+	 * @param status New sleep status for the entity.
+	 */
+	public void setSleepStatus(LivingEntity entity, SleepStatus status) {
+		if (entity instanceof Player) {
+			setSleepStatus((Player) entity, status);
+		} else {
+			SleepStatus oldStatus = getSleepStatus(entity);
+			if (oldStatus != status) {
+				changeEntityStatus(entity, oldStatus, status);
+			}
+		}
+	}
+	
+	private void changeEntityStatus(LivingEntity entity, SleepStatus oldStatus, SleepStatus status) {
+		SetSleepStatusEvent recording = FlightRecorderSupport.AVAILABLE
+				? SetSleepStatusEvent.start(entity.getEntityId(), entity.getType(), oldStatus, status) : null;
+		sleepTracker.setSleepStatus(entity, status);
+		if (entities.get(entity.getEntityId()) != entity) {
+			entities.add(entity);
+		}
+		metadataFilter.scheduleUpdate(entity);
+		if (recording != null) {
+			recording.observers = metadataFilter.getObservers(entity).size();
+			recording.commit();
+		}
+	}
+	
+	/**
+	 * Sets the sleep status of many living entities at once. Players among
+	 * them are changed like with
+	 * {@link #setSleepStatus(Collection, SleepStatus)}. Use this rather than
+	 * changing entities one by one when there are many of them.
+	 * @param entities Living entities.
+	 * @param status New sleep status for the entities.
+	 */
+	public void setEntitySleepStatus(Collection<? extends LivingEntity> entities, SleepStatus status) {
+		List<Player> players = new ArrayList<>();
+		for (LivingEntity entity : entities) {
+			if (entity instanceof Player) {
+				players.add((Player) entity);
+			} else {
+				SleepStatus oldStatus = getSleepStatus(entity);
+				if (oldStatus != status) {
+					changeEntityStatus(entity, oldStatus, status);
+				}
+			}
+		}
+		if (!players.isEmpty()) {
+			setSleepStatus(players, status);
+		}
+	}
+	
+	/**
+	 * Puts a player or other living entity to sleep for a while. After
+	 * that, they are woken up even if they were forced to sleep.
+	 * @param entity Player or other living entity.
+	 * @param status {@link SleepStatus#SLEEPING} or
+	 * {@link SleepStatus#FORCED_SLEEP}.
+	 * @param ticks How long the entity should sleep.
+	 * @return If the entity is now sleeping; this fails only if another
+	 * plugin cancelled the status change.
+	 */
+	public boolean sleepFor(LivingEntity entity, SleepStatus status, long ticks) {
+		if (status == SleepStatus.AWAKE) {
+			throw new IllegalArgumentException("cannot sleep awake");
+		}
+		setSleepStatus(entity, status);
+		if (getSleepStatus(entity) != status) {
+			return false;
+		}
+		wakeUps.schedule(entity, ticks);
+		return true;
+	}
+	
+	/**
+	 * Schedules a player or other living entity to be woken up after a
+	 * delay. This replaces any wake-up previously scheduled for them.
+	 * Scheduled wake-ups are forgotten if the entity leaves, dies or is
+	 * unloaded; players that are dead when their wake-up is due are still
+	 * woken up, since they keep their status over respawn.
+	 * @param entity Player or other living entity.
+	 * @param ticks Delay in ticks.
+	 */
+	public void wakeAfter(LivingEntity entity, long ticks) {
+		wakeUps.schedule(entity, ticks);
+	}
+	
+	/**
+	 * Schedules a player or other living entity to be woken up when it is
+	 * next given time of day in their world. The delay is calculated now;
+	 * if time of world is changed later, the wake-up will not follow it.
+	 * @param entity Player or other living entity.
+	 * @param worldTime Time of day, from 0 to 23999.
+	 */
+	public void wakeAt(LivingEntity entity, long worldTime) {
+		long delay = Math.floorMod(worldTime - entity.getWorld().getTime(), 24000L);
+		wakeUps.schedule(entity, delay);
+	}
+	
+	/**
+	 * Cancels scheduled wake-up of a player or other living entity.
+	 * @param entity Player or other living entity.
+	 * @return If a wake-up was scheduled and cancelled.
+	 */
+	public boolean cancelWakeUp(LivingEntity entity) {
+		return wakeUps.cancel(entity);
+	}
+	
+	/**
+	 * Gets how long it takes until a player or other living entity is
+	 * woken up.
+	 * @param entity Player or other living entity.
+	 * @return Ticks until scheduled wake-up, or -1 if there is none.
+	 */
+	public long getTicksUntilWakeUp(LivingEntity entity) {
+		return wakeUps.getRemaining(entity);
+	}
+	
+	/**
+	 * Sets the sleep status of many players at once. This will call one
+	 * {@link SleepStatusBatchChangeEvent} for all players whose status would
+	 * change; {@link SleepStatusChangeEvent}s are not called. Changes are
+	 * shown to other players together at end of current tick.
+	 * @param players Players.
+	 * @param status New sleep status for the players.
+	 * @return Players whose status was changed.
+	 */
+	public List<Player> setSleepStatus(Collection<? extends Player> players, SleepStatus status) {
+		// Skip players whose status wouldn't change
+		Map<Player, SleepStatus> oldStatuses = new LinkedHashMap<>();
+		for (Player player : players) {
+			SleepStatus oldStatus = getSleepStatus(player);
+			if (oldStatus != status) {
+				oldStatuses.put(player, oldStatus);
+			}
+		}
+		if (oldStatuses.isEmpty()) {
+			return Collections.emptyList();
+		}
+		
+		Map<Player, SetSleepStatusEvent> recordings = null;
+		if (FlightRecorderSupport.AVAILABLE && SetSleepStatusEvent.isRecording()) {
+			recordings = new HashMap<>();
+			for (Map.Entry<Player, SleepStatus> entry : oldStatuses.entrySet()) {
+				Player player = entry.getKey();
+				recordings.put(player, SetSleepStatusEvent.start(player.getEntityId(), player.getType(),
+						entry.getValue(), status));
+			}
+		}
+		
+		// Call one event for other plugins
+		SleepStatusBatchChangeEvent event = new SleepStatusBatchChangeEvent(oldStatuses, status);
+		Bukkit.getPluginManager().callEvent(event);
+		if (event.isCancelled()) {
+			if (recordings != null) {
+				commitRecordings(recordings, Collections.emptyList());
+			}
+			return Collections.emptyList();
+		}
+		
+		// Store new sleep statuses and update them at end of tick
+		List<Player> changed = event.getAffectedPlayers();
+		for (Player player : changed) {
+			sleepTracker.setSleepStatus(player, status);
+			metadataFilter.scheduleUpdate(player);
+		}
+		if (recordings != null) {
+			commitRecordings(recordings, changed);
+		}
+		return changed;
+	}
+	
+	private void commitRecordings(Map<Player, SetSleepStatusEvent> recordings, List<Player> changed) {
+		for (Player player : changed) {
+			SetSleepStatusEvent recording = recordings.remove(player);
+			if (recording != null) {
+				recording.observers = metadataFilter.getObservers(player).size();
+				recording.commit();
+			}
+		}
+		
+		// Players that other plugins removed from batch
+		for (SetSleepStatusEvent recording : recordings.values()) {
+			if (recording != null) {
+				recording.cancelled = true;
+				recording.commit();
+			}
+		}
+	}
+	
+	/**
+	 * Sets the sleep status of many players, spreading the work over as many
+	 * ticks as needed to stay within configured time budget per tick.
+	 * Players are changed in small batches, each of which works like
+	 * {@link #setSleepStatus(Collection, SleepStatus)}.
+	 * @param players Players.
+	 * @param status New sleep status for the players.
+	 * @return Future that completes on server thread with players whose
+	 * status was changed.
+	 */
+	public CompletableFuture<List<Player>> setSleepStatusGradually(Collection<? extends Player> players, SleepStatus status) {
+		return setSleepStatusGradually(players, status, tickBudget);
+	}
+	
+	/**
+	 * Sets the sleep status of many players, spreading the work over as many
+	 * ticks as needed to stay within given time budget per tick.
+	 * @param players Players.
+	 * @param status New sleep status for the players.
+	 * @param budgetNanos Maximum time to spend per tick, in nanoseconds.
+	 * At least a few players are processed per tick regardless of this.
+	 * @return Future that completes on server thread with players whose
+	 * status was changed.
+	 */
+	public CompletableFuture<List<Player>> setSleepStatusGradually(Collection<? extends Player> players, SleepStatus status, long budgetNanos) {
+		GradualStatusChange task = new GradualStatusChange(this, new ArrayList<>(players), status, budgetNanos);
+		SleeperPlugin.runTaskTimer(task, 0, 1);
+		return task.getResult();
+	}
+	
+	/**
+	 * Gets how many players are in a world. Like in vanilla, spectators are
+	 * not counted; they are not counted as sleepers either.
+	 * @param world World.
+	 * @return Number of players.
+	 */
+	public int getPlayerCount(World world) {
+		SleepCounter.Counts counts = counter.get(world);
+		return counts != null ? counts.players : 0;
+	}
+	
+	/**
+	 * Gets how many players are sleeping in a world, either naturally or
+	 * forcibly. This does not go through players in the world.
+	 * @param world World.
+	 * @return Number of sleeping players.
+	 */
+	public int getSleeperCount(World world) {
+		SleepCounter.Counts counts = counter.get(world);
+		return counts != null ? counts.getSleepers() : 0;
+	}
+	
+	/**
+	 * Gets how many players are sleeping in a world with given status.
+	 * @param world World.
+	 * @param status {@link SleepStatus#SLEEPING} or
+	 * {@link SleepStatus#FORCED_SLEEP}.
+	 * @return Number of players with the status.
+	 */
+	public int getSleeperCount(World world, SleepStatus status) {
+		SleepCounter.Counts counts = counter.get(world);
+		if (counts == null) {
+			return 0;
+		}
+		switch (status) {
+		case SLEEPING:
+			return counts.sleeping;
+		case FORCED_SLEEP:
+			return counts.forcedSleep;
+		default:
+			throw new IllegalArgumentException("awake players are not counted");
+		}
+	}
+	
+	/**
+	 * Finds sleeping players near a location. This only looks at sleepers
+	 * in nearby chunks, so it is cheap even with many players online.
+	 * @param center Center of search.
+	 * @param radius Search radius in blocks.
+	 * @return Sleeping players at most radius blocks from center.
+	 */
+	public List<Player> getSleepersNear(Location center, double radius) {
+		return grid.query(center, radius);
+	}
+	
+	/**
+	 * Finds sleeping players inside a box.
+	 * @param world World to search.
+	 * @param box Box to search.
+	 * @return Sleeping players in the box.
+	 */
+	public List<Player> getSleepersIn(World world, BoundingBox box) {
+		return grid.query(world, box);
+	}
+	
+	/**
+	 * Shows sleep of a player to given observers. By default, everyone
+	 * can see everyone sleeping, so this is only needed after sleep has been
+	 * hidden from some of them.
+	 * @param target Player whose sleep is shown.
+	 * @param observers Players who should see target sleeping.
+	 */
+	public void showSleepTo(Player target, Collection<? extends Player> observers) {
+		metadataFilter.setSleepVisible(target, observers, true);
+	}
+	
+	/**
+	 * Hides sleep of a player from given observers. They will see the
+	 * player awake, no matter what their sleep status is.
+	 * @param target Player whose sleep is hidden.
+	 * @param observers Players who should not see target sleeping.
+	 */
+	public void hideSleepFrom(Player target, Collection<? extends Player> observers) {
+		metadataFilter.setSleepVisible(target, observers, false);
+	}
+	
+	/**
+	 * Shows sleep of a player to only given observers, and hides it from
+	 * everyone else, including players who join later.
+	 * @param target Player whose sleep is shown.
+	 * @param observers Only players who should see target sleeping.
+	 */
+	public void showSleepOnlyTo(Player target, Collection<? extends Player> observers) {
+		metadataFilter.setSleepOnlyVisible(target, observers);
+	}
+	
+	/**
+	 * Shows sleep of a player to everyone, which is the default.
+	 * @param target Player whose sleep is shown.
+	 */
+	public void resetSleepVisibility(Player target) {
+		metadataFilter.resetSleepVisibility(target);
+	}
+	
+	/**
+	 * Checks if an observer can see sleep of a player. Safe to call from
+	 * any thread.
+	 * @param observer Observer.
+	 * @param target Player who might be sleeping.
+	 * @return If observer sees target sleeping when target is asleep.
+	 */
+	public boolean canSeeSleep(Player observer, Player target) {
+		return metadataFilter.canSeeSleep(observer, target);
+	}
+	
+	/**
+	 * Immediately shows all sleep status changes made during current tick
+	 * to other players. Normally, this happens at end of tick.
+	 */
+	public void flushUpdates() {
+		metadataFilter.flushUpdates();
 	}
 	
 	/**
@@ -108,6 +551,101 @@ public class SleeperApi {
 		return true;
 	}
 	
+	/**
+	 * Sets the sleep status of a player or other living entity. Unlike
+	 * {@link #setSleepStatus(LivingEntity, SleepStatus)}, this can be called
+	 * from any thread. Changes requested during same tick are applied
+	 * together on server thread. For players, this always calls a
+	 * {@link SleepStatusBatchChangeEvent}, one per status, even if only one
+	 * player is changed; {@link SleepStatusChangeEvent}s are not called.
+	 * @param entity Player or other living entity.
+	 * @param status New sleep status.
+	 * @return Future that completes on server thread, with true if the
+	 * entity has the new status after the change.
+	 */
+	public CompletableFuture<Boolean> setSleepStatusAsync(LivingEntity entity, SleepStatus status) {
+		return mainThread.setSleepStatus(entity, status);
+	}
+	
+	/**
+	 * Attempts to make the given player sleep naturally at given location.
+	 * Unlike {@link #sleepNaturally(Player, Location)}, this can be called
+	 * from any thread. On Paper, bed chunk is loaded asynchronously before
+	 * the player is teleported there. The status is changed like with
+	 * {@link #setSleepStatusAsync(LivingEntity, SleepStatus)}, so a
+	 * {@link SleepStatusBatchChangeEvent} is called instead of
+	 * {@link SleepStatusChangeEvent}.
+	 * @param player Player to put to sleep.
+	 * @param bed Bed location. A bed block is not needed.
+	 * @return Future that completes on server thread, with true if natural
+	 * sleep succeeded.
+	 */
+	public CompletableFuture<Boolean> sleepNaturallyAsync(Player player, Location bed) {
+		CompletableFuture<Boolean> result = new CompletableFuture<>();
+		mainThread.execute(() -> {
+			if (!player.isOnline() || getSleepStatus(player) == SleepStatus.FORCED_SLEEP) {
+				result.complete(false);
+				return;
+			}
+			
+			// Call normal bed enter event for plugins to catch
+			PlayerBedEnterEvent event = new PlayerBedEnterEvent(player, bed.getBlock(), BedEnterResult.OK);
+			Bukkit.getPluginManager().callEvent(event);
+			if (event.isCancelled()) {
+				result.complete(false);
+				return;
+			}
+			
+			// Teleport player to bed, and once there, make them sleep
+			teleport(player, bed.clone().add(0, 1, 0)).thenComposeAsync(success -> {
+				if (!success || !player.isOnline() || getSleepStatus(player) == SleepStatus.FORCED_SLEEP) {
+					return CompletableFuture.completedFuture(false);
+				}
+				return mainThread.setSleepStatus(player, SleepStatus.SLEEPING);
+			}, mainThread).whenComplete((success, e) -> {
+				if (e != null) {
+					result.completeExceptionally(e);
+				} else {
+					result.complete(success);
+				}
+			});
+		});
+		return result;
+	}
+	
+	/**
+	 * Teleports a player asynchronously, if the server supports it.
+	 * @param player Player.
+	 * @param location Target location.
+	 * @return Future that tells if the teleport succeeded.
+	 */
+	@SuppressWarnings("unchecked")
+	private CompletableFuture<Boolean> teleport(Player player, Location location) {
+		if (TELEPORT_ASYNC != null) {
+			try {
+				return (CompletableFuture<Boolean>) TELEPORT_ASYNC.invokeExact((Entity) player, location, TeleportCause.UNKNOWN);
+			} catch (Throwable e) {
+				CompletableFuture<Boolean> failed = new CompletableFuture<>();
+				failed.completeExceptionally(e);
+				return failed;
+			}
+		}
+		return CompletableFuture.completedFuture(player.teleport(location, TeleportCause.UNKNOWN));
+	}
+	
+	/**
+	 * Attempts to wake up a player. Unlike {@link #attemptWakeUp(Player)},
+	 * this can be called from any thread.
+	 * @param player Player to wake up.
+	 * @return Future that completes on server thread, with true if waking
+	 * up succeeded.
+	 */
+	public CompletableFuture<Boolean> attemptWakeUpAsync(Player player) {
+		CompletableFuture<Boolean> result = new CompletableFuture<>();
+		mainThread.execute(() -> result.complete(player.isOnline() && attemptWakeUp(player)));
+		return result;
+	}
+	
 	/**
 	 * Attempts to wake up a player. Players forced to sleep cannot be waken
 	 * up this way; consider {@link #setSleepStatus(Player, SleepStatus)} if
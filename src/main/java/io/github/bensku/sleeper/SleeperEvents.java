@@ -1,14 +1,183 @@
 package io.github.bensku.sleeper;
 
+import java.util.Arrays;
+import java.util.Collection;
+
+import org.bukkit.Location;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.LivingEntity;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.entity.EntityDeathEvent;
+import org.bukkit.event.player.PlayerChangedWorldEvent;
+import org.bukkit.event.player.PlayerGameModeChangeEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerMoveEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.event.player.PlayerRespawnEvent;
+import org.bukkit.event.player.PlayerTeleportEvent;
+import org.bukkit.event.world.ChunkLoadEvent;
+import org.bukkit.event.world.ChunkUnloadEvent;
+import org.bukkit.event.world.WorldSaveEvent;
+import org.bukkit.event.world.WorldUnloadEvent;
+
+import io.github.bensku.sleeper.filter.MetadataPacketFilter;
+
 /**
  * Bukkit event handlers.
  *
  */
-public class SleeperEvents {
-	
+public class SleeperEvents implements Listener {
+
 	private final SleeperApi api;
+	private final SleepTracker sleepTracker;
+	private final SleepCounter counter;
+	private final SleeperGrid grid;
+	private final EntityIndex<Player> players;
+	private final EntityTable<LivingEntity> entities;
+	private final MetadataPacketFilter metadataFilter;
 
-	SleeperEvents(SleeperApi api) {
+	SleeperEvents(SleeperApi api, SleepTracker sleepTracker, SleepCounter counter, SleeperGrid grid,
+			EntityIndex<Player> players, EntityTable<LivingEntity> entities, MetadataPacketFilter metadataFilter) {
 		this.api = api;
+		this.sleepTracker = sleepTracker;
+		this.counter = counter;
+		this.grid = grid;
+		this.players = players;
+		this.entities = entities;
+		this.metadataFilter = metadataFilter;
+	}
+
+	@EventHandler(priority = EventPriority.LOWEST)
+	public void onJoin(PlayerJoinEvent event) {
+		// Make sleep status available before other plugins see the player
+		sleepTracker.load(event.getPlayer());
+		players.add(event.getPlayer());
+		metadataFilter.addObserver(event.getPlayer());
+	}
+
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onQuit(PlayerQuitEvent event) {
+		api.cancelWakeUp(event.getPlayer());
+		sleepTracker.unload(event.getPlayer());
+		players.remove(event.getPlayer());
+		metadataFilter.removeObserver(event.getPlayer());
+		metadataFilter.forgetEntity(event.getPlayer().getEntityId());
+	}
+
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onWorldChange(PlayerChangedWorldEvent event) {
+		// Entity id should be stable, but make sure index doesn't go stale
+		players.add(event.getPlayer());
+		if (SleepCounter.isCounted(event.getPlayer().getGameMode())) {
+			counter.changeWorld(event.getFrom(), event.getPlayer().getWorld(), sleepTracker.getSleepStatus(event.getPlayer()));
+		}
+		grid.move(event.getPlayer(), event.getPlayer().getLocation());
+	}
+
+	@EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+	public void onGameModeChange(PlayerGameModeChangeEvent event) {
+		// Spectators are not counted as players or sleepers
+		sleepTracker.changeGameMode(event.getPlayer(), event.getNewGameMode());
+	}
+
+	@EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+	public void onMove(PlayerMoveEvent event) {
+		// Only chunk borders matter for sleeper grid
+		Location from = event.getFrom();
+		Location to = event.getTo();
+		if (from.getBlockX() >> 4 != to.getBlockX() >> 4 || from.getBlockZ() >> 4 != to.getBlockZ() >> 4
+				|| from.getWorld() != to.getWorld()) {
+			grid.move(event.getPlayer(), to);
+		}
+	}
+
+	@EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+	public void onTeleport(PlayerTeleportEvent event) {
+		onMove(event);
+	}
+
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onDeath(EntityDeathEvent event) {
+		LivingEntity entity = event.getEntity();
+		if (!(entity instanceof Player) && entities.get(entity.getEntityId()) == entity) {
+			unloadEntity(entity);
+		}
+	}
+
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onChunkLoad(ChunkLoadEvent event) {
+		if (!event.isNewChunk()) { // New chunks can't have sleepers yet
+			loadEntities(Arrays.asList(event.getChunk().getEntities()));
+		}
+	}
+
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onChunkUnload(ChunkUnloadEvent event) {
+		if (entities.size() == 0) {
+			return; // Nothing to unload, don't bother looking
+		}
+		for (Entity entity : event.getChunk().getEntities()) {
+			if (entity instanceof LivingEntity && entities.get(entity.getEntityId()) == entity) {
+				unloadEntity((LivingEntity) entity);
+			}
+		}
+	}
+
+	/**
+	 * Forgets entities that are gone without dying or being unloaded, e.g.
+	 * NPCs that were despawned with {@link Entity#remove()}.
+	 */
+	void removeInvalidEntities() {
+		if (entities.size() == 0) {
+			return;
+		}
+		for (LivingEntity entity : entities.getAll()) {
+			if (!entity.isValid()) {
+				unloadEntity(entity);
+			}
+		}
+	}
+
+	private void unloadEntity(LivingEntity entity) {
+		api.cancelWakeUp(entity);
+		sleepTracker.unload(entity);
+		entities.remove(entity);
+		metadataFilter.forgetEntity(entity.getEntityId());
+	}
+
+	/**
+	 * Loads sleep statuses of living entities that are not players, and
+	 * adds sleeping ones to entity table.
+	 * @param loaded Entities that have been loaded.
+	 */
+	void loadEntities(Collection<? extends Entity> loaded) {
+		for (Entity entity : loaded) {
+			if (entity instanceof LivingEntity && !(entity instanceof Player) && sleepTracker.load((LivingEntity) entity)) {
+				entities.add((LivingEntity) entity);
+			}
+		}
+	}
+
+	@EventHandler(priority = EventPriority.LOWEST)
+	public void onWorldSave(WorldSaveEvent event) {
+		// Write changed statuses before entity data is saved
+		// Players were saved before this, but we write them every tick
+		sleepTracker.saveAll(event.getWorld());
+	}
+
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onWorldUnload(WorldUnloadEvent event) {
+		if (!event.isCancelled()) {
+			counter.removeWorld(event.getWorld());
+		}
+	}
+
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onRespawn(PlayerRespawnEvent event) {
+		players.add(event.getPlayer());
+		grid.move(event.getPlayer(), event.getRespawnLocation());
 	}
 }
@@ -0,0 +1,198 @@
+package io.github.bensku.sleeper;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+import org.bukkit.util.BoundingBox;
+
+/**
+ * Spatial index of sleeping players, bucketed by world and chunk. Players
+ * are added when they fall asleep and moved between buckets when they
+ * cross chunk borders. Queries only look at buckets near the area, so
+ * their cost depends on number of nearby sleepers rather than on number of
+ * players online. Only accessed from server thread.
+ *
+ */
+class SleeperGrid {
+
+	/**
+	 * Bucket that a player is currently in.
+	 *
+	 */
+	private static class Entry {
+
+		final World world;
+		final long chunk;
+
+		Entry(World world, long chunk) {
+			this.world = world;
+			this.chunk = chunk;
+		}
+	}
+
+	/**
+	 * Sleeping players by world and chunk key.
+	 */
+	private final Map<World, Map<Long, Set<Player>>> buckets;
+
+	/**
+	 * Where each player in {@link #buckets} is.
+	 */
+	private final Map<Player, Entry> entries;
+
+	/**
+	 * Location that queries copy player positions to.
+	 */
+	private final Location location;
+
+	SleeperGrid() {
+		this.buckets = new HashMap<>();
+		this.entries = new HashMap<>();
+		this.location = new Location(null, 0, 0, 0);
+	}
+
+	private static long chunkKey(int chunkX, int chunkZ) {
+		return (long) chunkX << 32 | chunkZ & 0xffffffffL;
+	}
+
+	/**
+	 * Adds a player to the index, or moves them to correct bucket if they're
+	 * already in it.
+	 * @param player Sleeping player.
+	 */
+	void add(Player player) {
+		put(player, player.getLocation(location));
+	}
+
+	private void put(Player player, Location loc) {
+		World world = loc.getWorld();
+		long chunk = chunkKey(loc.getBlockX() >> 4, loc.getBlockZ() >> 4);
+		Entry entry = entries.get(player);
+		if (entry != null) {
+			if (entry.world == world && entry.chunk == chunk) {
+				return; // Still in same chunk
+			}
+			removeFromBucket(player, entry);
+		}
+		entries.put(player, new Entry(world, chunk));
+		buckets.computeIfAbsent(world, w -> new HashMap<>())
+				.computeIfAbsent(chunk, c -> new LinkedHashSet<>()).add(player);
+	}
+
+	/**
+	 * Removes a player from the index, if they are in it.
+	 * @param player Player.
+	 */
+	void remove(Player player) {
+		Entry entry = entries.remove(player);
+		if (entry != null) {
+			removeFromBucket(player, entry);
+		}
+	}
+
+	/**
+	 * Updates position of a player that has moved. Players that are not in
+	 * the index are ignored.
+	 * @param player Player.
+	 * @param to Where the player is moving to.
+	 */
+	void move(Player player, Location to) {
+		if (entries.containsKey(player)) {
+			put(player, to);
+		}
+	}
+
+	private void removeFromBucket(Player player, Entry entry) {
+		Map<Long, Set<Player>> chunks = buckets.get(entry.world);
+		Set<Player> bucket = chunks.get(entry.chunk);
+		bucket.remove(player);
+		if (bucket.isEmpty()) { // Don't leave empty buckets around
+			chunks.remove(entry.chunk);
+			if (chunks.isEmpty()) {
+				buckets.remove(entry.world);
+			}
+		}
+	}
+
+	/**
+	 * Finds sleeping players within a box.
+	 * @param world World.
+	 * @param box Box to search.
+	 * @return Sleeping players in the box.
+	 */
+	List<Player> query(World world, BoundingBox box) {
+		List<Player> result = new ArrayList<>();
+		Map<Long, Set<Player>> chunks = buckets.get(world);
+		if (chunks == null) {
+			return result; // Nobody is sleeping in this world
+		}
+
+		int minX = (int) Math.floor(box.getMinX()) >> 4;
+		int minZ = (int) Math.floor(box.getMinZ()) >> 4;
+		int maxX = (int) Math.floor(box.getMaxX()) >> 4;
+		int maxZ = (int) Math.floor(box.getMaxZ()) >> 4;
+		long area = (long) (maxX - minX + 1) * (maxZ - minZ + 1);
+		if (area > chunks.size()) {
+			// Large box; go through occupied chunks instead
+			for (Map.Entry<Long, Set<Player>> entry : chunks.entrySet()) {
+				long key = entry.getKey();
+				int x = (int) (key >> 32);
+				int z = (int) key;
+				if (x >= minX && x <= maxX && z >= minZ && z <= maxZ) {
+					collect(entry.getValue(), box, result);
+				}
+			}
+		} else {
+			for (int x = minX; x <= maxX; x++) {
+				for (int z = minZ; z <= maxZ; z++) {
+					Set<Player> bucket = chunks.get(chunkKey(x, z));
+					if (bucket != null) {
+						collect(bucket, box, result);
+					}
+				}
+			}
+		}
+		return result;
+	}
+
+	private void collect(Set<Player> bucket, BoundingBox box, List<Player> result) {
+		for (Player player : bucket) {
+			Location loc = player.getLocation(location);
+			if (box.contains(loc.getX(), loc.getY(), loc.getZ())) {
+				result.add(player);
+			}
+		}
+	}
+
+	/**
+	 * Finds sleeping players within a sphere.
+	 * @param center Center of sphere.
+	 * @param radius Radius of sphere.
+	 * @return Sleeping players in the sphere.
+	 */
+	List<Player> query(Location center, double radius) {
+		double x = center.getX();
+		double y = center.getY();
+		double z = center.getZ();
+		BoundingBox box = new BoundingBox(x - radius, y - radius, z - radius, x + radius, y + radius, z + radius);
+		List<Player> result = query(center.getWorld(), box);
+
+		// Remove players in corners of the box
+		double radiusSquared = radius * radius;
+		result.removeIf(player -> {
+			Location loc = player.getLocation(location);
+			double dx = loc.getX() - x;
+			double dy = loc.getY() - y;
+			double dz = loc.getZ() - z;
+			return dx * dx + dy * dy + dz * dz > radiusSquared;
+		});
+		return result;
+	}
+}
@@ -1,19 +1,48 @@
 package io.github.bensku.sleeper;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.logging.Level;
+
+import org.bukkit.Location;
 import org.bukkit.NamespacedKey;
+import org.bukkit.World;
+import org.bukkit.command.BlockCommandSender;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.LivingEntity;
 import org.bukkit.entity.Player;
 import org.bukkit.plugin.java.JavaPlugin;
 import org.bukkit.scheduler.BukkitRunnable;
 
+import io.github.bensku.sleeper.filter.FilterMetrics;
 import io.github.bensku.sleeper.filter.LeaveBedPacketFilter;
 import io.github.bensku.sleeper.filter.MetadataPacketFilter;
+import io.github.bensku.sleeper.filter.MovementPacketFilter;
+import io.github.bensku.sleeper.filter.PacketTrace;
+import io.github.bensku.sleeper.filter.PositionPacketFilter;
+import io.github.bensku.sleeper.nms.NmsAccess;
 
 public class SleeperPlugin extends JavaPlugin {
 
 	private static SleeperPlugin INSTANCE;
 	
+	private SleepTracker sleepTracker;
+	private MetadataPacketFilter metadataFilter;
+	private LeaveBedPacketFilter leaveBedFilter;
+	private FilterMetrics metrics;
+	
+	/**
+	 * Packet trace that is being captured, if any.
+	 */
+	private PacketTrace trace;
+	
 	public static NamespacedKey createKey(String key) {
 		return new NamespacedKey(INSTANCE, key);
 	}
@@ -21,30 +50,271 @@ public class SleeperPlugin extends JavaPlugin {
 	public static void runTask(BukkitRunnable task) {
 		task.runTask(INSTANCE);
 	}
+	
+	public static void runTaskTimer(BukkitRunnable task, long delay, long period) {
+		task.runTaskTimer(INSTANCE, delay, period);
+	}
 		
 	@Override
 	public void onEnable() {
 		INSTANCE = this;
+		try {
+			NmsAccess.init(); // Fail now rather than when a packet is sent
+		} catch (ExceptionInInitializerError e) {
+			getLogger().severe(e.getCause().getMessage());
+			getServer().getPluginManager().disablePlugin(this);
+			return;
+		}
 
 		//saveDefaultConfig(); // Copy default config to data folder
-		SleepTracker sleepTracker = new SleepTracker();
-		MetadataPacketFilter metadataFilter = new MetadataPacketFilter(this);
-		SleeperApi.instance = new SleeperApi(sleepTracker, metadataFilter);
-		LeaveBedPacketFilter leaveBedFilter = new LeaveBedPacketFilter(this, SleeperApi.getInstance());
+		SleepCounter counter = new SleepCounter();
+		SleeperGrid grid = new SleeperGrid();
+		SleepTracker sleepTracker = new SleepTracker(this, counter, grid);
+		this.sleepTracker = sleepTracker;
+		EntityIndex<Player> players = new EntityIndex<>();
+		EntityTable<LivingEntity> entities = new EntityTable<>();
+		MetadataPacketFilter.Backend backend = MetadataPacketFilter.Backend.valueOf(getConfig().getString("performance.packet backend").toUpperCase(Locale.ROOT));
+		this.metrics = new FilterMetrics();
+		this.metadataFilter = new MetadataPacketFilter(this, sleepTracker, players, entities, backend, metrics);
+		long tickBudget = (long) (getConfig().getDouble("performance.mass operation budget") * 1_000_000);
+		SleeperApi.instance = new SleeperApi(this, sleepTracker, counter, grid, entities, metadataFilter, tickBudget);
+		this.leaveBedFilter = new LeaveBedPacketFilter(this, SleeperApi.getInstance(), metrics);
 		
 		metadataFilter.enable();
 		leaveBedFilter.enable();
+		if (getConfig().getBoolean("performance.drop sleeper movement packets")) {
+			new MovementPacketFilter(this, sleepTracker, metadataFilter).enable();
+		}
+		if (getConfig().getBoolean("workarounds.deny sleeper movement")) {
+			new PositionPacketFilter(this, sleepTracker).enable();
+		}
+		
+		// Players that are already online (e.g. after reload) won't join again
+		for (Player player : getServer().getOnlinePlayers()) {
+			sleepTracker.load(player);
+			players.add(player);
+			metadataFilter.addObserver(player);
+		}
+		runTaskTimer(SleeperApi.getInstance().getWakeUps(), 1, 1);
+		
+		// Autosave saves players before worlds, so don't wait for world save
+		runTaskTimer(new BukkitRunnable() {
+			
+			@Override
+			public void run() {
+				sleepTracker.savePlayers();
+			}
+		}, 1, 1);
+		runTaskTimer(SleeperApi.getInstance().getMainThreadQueue(), 1, 1);
+		int skipPercentage = getConfig().getInt("gameplay.night skip percentage");
+		if (skipPercentage > 0) {
+			runTaskTimer(new NightSkipTask(SleeperApi.getInstance(), counter, skipPercentage), 1, 1);
+		}
+		int metricsInterval = getConfig().getInt("performance.metrics interval");
+		if (metricsInterval > 0) {
+			Path metricsFile = getDataFolder().toPath().resolve(getConfig().getString("performance.metrics file"));
+			new MetricsExporter(this, metrics, metricsFile).runTaskTimerAsynchronously(this, 20, metricsInterval * 20L);
+		}
+		SleeperEvents events = new SleeperEvents(SleeperApi.getInstance(), sleepTracker, counter, grid, players, entities, metadataFilter);
+		
+		// Same for entities in chunks that are already loaded
+		for (World world : getServer().getWorlds()) {
+			events.loadEntities(world.getEntities());
+		}
+		getServer().getPluginManager().registerEvents(events, this);
+		
+		// Entities removed by plugins don't die or unload; look for them
+		runTaskTimer(new BukkitRunnable() {
+			
+			@Override
+			public void run() {
+				events.removeInvalidEntities();
+			}
+		}, 100, 100);
+	}
+	
+	@Override
+	public void onDisable() {
+		stopTrace();
+		if (metadataFilter != null) {
+			metadataFilter.disable(); // Connections outlive us on reload
+		}
+		if (sleepTracker != null) {
+			sleepTracker.saveAll(); // Server saves player and entity data after this
+		}
 	}
 	
 	@Override
     public boolean onCommand(CommandSender sender, Command command, String label, String[] args) {
 		switch (command.getName()) {
 		case "sleep":
-			Player target = getServer().getPlayer(args[0]);
-			SleepStatus current = SleeperApi.getInstance().getSleepStatus(target);
-			SleeperApi.getInstance().setSleepStatus(target, current == SleepStatus.SLEEPING ? SleepStatus.AWAKE : SleepStatus.SLEEPING);
+			if (args.length == 0) {
+				return false;
+			}
+			List<Player> targets = selectPlayers(sender, args[0]);
+			if (targets == null) {
+				return false; // Invalid selector
+			}
+			
+			SleepStatus status = null;
+			if (args.length > 1) {
+				try {
+					status = SleepStatus.valueOf(args[1].toUpperCase(Locale.ROOT));
+				} catch (IllegalArgumentException e) {
+					sender.sendMessage("Unknown sleep status: " + args[1]);
+					return true;
+				}
+			}
+			
+			if (!args[0].startsWith("@")) { // Single player
+				if (targets.isEmpty()) {
+					sender.sendMessage("Player not found: " + args[0]);
+					return true;
+				}
+				Player target = targets.get(0);
+				if (status == null) { // Toggle
+					SleepStatus current = SleeperApi.getInstance().getSleepStatus(target);
+					status = current == SleepStatus.SLEEPING ? SleepStatus.AWAKE : SleepStatus.SLEEPING;
+				}
+				SleeperApi.getInstance().setSleepStatus(target, status);
+			} else { // Possibly many players, spread work over ticks
+				if (status == null) {
+					return false; // Toggling many players at once is not supported
+				}
+				long start = System.nanoTime();
+				SleeperApi.getInstance().setSleepStatusGradually(targets, status).thenAccept(changed -> {
+					long millis = (System.nanoTime() - start) / 1_000_000;
+					sender.sendMessage("Changed sleep status of " + changed.size() + "/" + targets.size() + " players in " + millis + " ms");
+				});
+			}
+			break;
+		case "sleeper":
+			if (args.length == 1 && args[0].equals("stats")) {
+				for (String line : metrics.describe()) {
+					sender.sendMessage(line);
+				}
+				return true;
+			} else if (args.length < 2 || !args[0].equals("trace")) {
+				return false;
+			}
+			if (args[1].equals("start")) {
+				if (trace != null) {
+					sender.sendMessage("Packet trace is already being captured");
+					return true;
+				}
+				try {
+					sender.sendMessage("Capturing packets to " + startTrace());
+				} catch (IOException e) {
+					getLogger().log(Level.WARNING, "failed to start packet trace", e);
+					sender.sendMessage("Failed to start packet trace: " + e.getMessage());
+				}
+			} else if (args[1].equals("stop")) {
+				PacketTrace finished = stopTrace();
+				if (finished == null) {
+					sender.sendMessage("Packet trace is not being captured");
+				} else {
+					sender.sendMessage("Captured " + finished.getRecorded() + " packets, dropped " + finished.getDropped());
+				}
+			} else {
+				return false;
+			}
+			break;
 		}
         return true;
     }
+	
+	/**
+	 * Starts capturing packets that the filters see to a new trace file in
+	 * plugin data folder.
+	 * @return Path to the trace file.
+	 * @throws IOException When the file cannot be created.
+	 */
+	private Path startTrace() throws IOException {
+		Path dir = getDataFolder().toPath().resolve("traces");
+		Files.createDirectories(dir);
+		Path file = dir.resolve("trace-" + System.currentTimeMillis() + ".bin");
+		trace = new PacketTrace(file, getConfig().getInt("performance.trace queue size"));
+		metadataFilter.setTrace(trace);
+		leaveBedFilter.setTrace(trace);
+		return file;
+	}
+	
+	/**
+	 * Stops capturing packets, if a capture is in progress.
+	 * @return The finished trace, or null if there was none.
+	 */
+	private PacketTrace stopTrace() {
+		if (trace == null) {
+			return null;
+		}
+		metadataFilter.setTrace(null);
+		leaveBedFilter.setTrace(null);
+		PacketTrace finished = trace;
+		trace = null;
+		try {
+			finished.close();
+		} catch (IOException e) {
+			getLogger().log(Level.WARNING, "failed to write packet trace", e);
+		}
+		return finished;
+	}
+	
+	/**
+	 * Selects players for a command.
+	 * @param sender Command sender.
+	 * @param selector Player name, {@code @all}, {@code @world} (world of
+	 * sender), {@code @world:<name>} or {@code @radius:<blocks>}.
+	 * @return Selected players, or null if selector is invalid.
+	 */
+	private List<Player> selectPlayers(CommandSender sender, String selector) {
+		if (!selector.startsWith("@")) {
+			Player player = getServer().getPlayer(selector);
+			return player != null ? Collections.singletonList(player) : Collections.emptyList();
+		}
+		
+		String[] parts = selector.split(":", 2);
+		switch (parts[0]) {
+		case "@all":
+			return new ArrayList<>(getServer().getOnlinePlayers());
+		case "@world":
+			World world;
+			if (parts.length > 1) {
+				world = getServer().getWorld(parts[1]);
+			} else {
+				Location location = getSenderLocation(sender);
+				world = location != null ? location.getWorld() : null;
+			}
+			return world != null ? world.getPlayers() : null;
+		case "@radius":
+			Location center = getSenderLocation(sender);
+			if (parts.length < 2 || center == null) {
+				return null;
+			}
+			double radius;
+			try {
+				radius = Double.parseDouble(parts[1]);
+			} catch (NumberFormatException e) {
+				return null;
+			}
+			List<Player> players = new ArrayList<>();
+			for (Player player : center.getWorld().getPlayers()) {
+				if (player.getLocation().distanceSquared(center) <= radius * radius) {
+					players.add(player);
+				}
+			}
+			return players;
+		default:
+			return null;
+		}
+	}
+	
+	private static Location getSenderLocation(CommandSender sender) {
+		if (sender instanceof Entity) {
+			return ((Entity) sender).getLocation();
+		} else if (sender instanceof BlockCommandSender) {
+			return ((BlockCommandSender) sender).getBlock().getLocation();
+		}
+		return null;
+	}
 
 }
@@ -0,0 +1,208 @@
+package io.github.bensku.sleeper;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bukkit.entity.LivingEntity;
+import org.bukkit.entity.Player;
+import org.bukkit.scheduler.BukkitRunnable;
+
+/**
+ * Hierarchical timing wheel for scheduled wake-ups. Each level has 64
+ * slots, and each slot of a level covers a whole rotation of the level
+ * below it. Timers are moved down a level when the level below wraps
+ * around. Scheduling and cancelling are constant time, and ticking only
+ * looks at one slot (plus occasional cascades).
+ *
+ * <p>Wake-ups that are due in same tick are done together, with one batch
+ * status change. Only accessed from server thread.
+ *
+ */
+class WakeUpWheel extends BukkitRunnable {
+
+	private static final int SLOT_BITS = 6;
+	private static final int SLOTS = 1 << SLOT_BITS;
+	private static final int MASK = SLOTS - 1;
+	private static final int LEVELS = 4;
+
+	/**
+	 * Longest delay that the wheel can represent directly. Timers further
+	 * in future are placed to last slot and re-placed when they cascade.
+	 */
+	private static final long MAX_DELAY = (1L << SLOT_BITS * LEVELS) - 1;
+
+	/**
+	 * A scheduled wake-up. Also used as sentinel of slot lists.
+	 *
+	 */
+	private static class Timer {
+
+		final LivingEntity entity;
+		final long deadline;
+		Timer prev, next;
+
+		Timer(LivingEntity entity, long deadline) {
+			this.entity = entity;
+			this.deadline = deadline;
+		}
+
+		void unlink() {
+			prev.next = next;
+			next.prev = prev;
+			prev = null;
+			next = null;
+		}
+	}
+
+	private final SleeperApi api;
+
+	/**
+	 * Sentinels of timer lists by level and slot.
+	 */
+	private final Timer[][] slots;
+
+	/**
+	 * Pending timers by entity.
+	 */
+	private final Map<LivingEntity, Timer> timers;
+
+	/**
+	 * Next tick to be processed.
+	 */
+	private long now;
+
+	WakeUpWheel(SleeperApi api) {
+		this.api = api;
+		this.slots = new Timer[LEVELS][SLOTS];
+		for (Timer[] level : slots) {
+			for (int i = 0; i < SLOTS; i++) {
+				Timer sentinel = new Timer(null, 0);
+				sentinel.prev = sentinel;
+				sentinel.next = sentinel;
+				level[i] = sentinel;
+			}
+		}
+		this.timers = new HashMap<>();
+	}
+
+	/**
+	 * Schedules an entity to be woken up. This replaces a wake-up that
+	 * might have been scheduled for it before.
+	 * @param entity Player or other living entity.
+	 * @param delay Delay in ticks.
+	 */
+	void schedule(LivingEntity entity, long delay) {
+		cancel(entity);
+		Timer timer = new Timer(entity, now + Math.max(0, delay));
+		timers.put(entity, timer);
+		place(timer);
+	}
+
+	/**
+	 * Cancels scheduled wake-up of an entity.
+	 * @param entity Player or other living entity.
+	 * @return If a wake-up was cancelled.
+	 */
+	boolean cancel(LivingEntity entity) {
+		Timer timer = timers.remove(entity);
+		if (timer == null) {
+			return false;
+		}
+		timer.unlink();
+		return true;
+	}
+
+	/**
+	 * Gets remaining time until an entity is woken up.
+	 * @param entity Player or other living entity.
+	 * @return Remaining ticks, or -1 if no wake-up has been scheduled.
+	 */
+	long getRemaining(LivingEntity entity) {
+		Timer timer = timers.get(entity);
+		return timer != null ? timer.deadline - now : -1;
+	}
+
+	private void place(Timer timer) {
+		long delay = Math.min(timer.deadline - now, MAX_DELAY);
+		long when = now + delay;
+		int level = 0;
+		while (delay >= 1L << SLOT_BITS * (level + 1)) {
+			level++;
+		}
+		Timer sentinel = slots[level][(int) (when >>> SLOT_BITS * level) & MASK];
+
+		// Add to end of slot list
+		timer.prev = sentinel.prev;
+		timer.next = sentinel;
+		sentinel.prev.next = timer;
+		sentinel.prev = timer;
+	}
+
+	/**
+	 * Moves all timers of a slot to lower levels.
+	 * @param level Level of slot.
+	 * @param index Index of slot.
+	 */
+	private void cascade(int level, int index) {
+		Timer sentinel = slots[level][index];
+		Timer timer = sentinel.next;
+		sentinel.prev = sentinel;
+		sentinel.next = sentinel;
+		while (timer != sentinel) {
+			Timer next = timer.next;
+			place(timer);
+			timer = next;
+		}
+	}
+
+	@Override
+	public void run() {
+		int index = (int) now & MASK;
+		if (index == 0) { // Level 0 wrapped around, refill it from above
+			for (int level = 1; level < LEVELS; level++) {
+				int slot = (int) (now >>> SLOT_BITS * level) & MASK;
+				cascade(level, slot);
+				if (slot != 0) {
+					break; // This level didn't wrap, so levels above won't cascade
+				}
+			}
+		}
+
+		// Take everything in current slot
+		Timer sentinel = slots[0][index];
+		if (sentinel.next == sentinel) {
+			now++;
+			return; // Nothing to do this tick
+		}
+		List<LivingEntity> due = new ArrayList<>();
+		for (Timer timer = sentinel.next; timer != sentinel;) {
+			Timer next = timer.next;
+			timers.remove(timer.entity);
+			timer.prev = null;
+			timer.next = null;
+			if (isPresent(timer.entity)) {
+				due.add(timer.entity);
+			}
+			timer = next;
+		}
+		sentinel.prev = sentinel;
+		sentinel.next = sentinel;
+		now++;
+
+		// Wake up everyone at once
+		api.setEntitySleepStatus(due, SleepStatus.AWAKE);
+	}
+
+	/**
+	 * Checks if an entity can still be woken up. Players who are dead are
+	 * not valid, but they keep their status over respawn, so they must be
+	 * woken up too.
+	 * @param entity Player or other living entity.
+	 * @return If the entity is online or loaded.
+	 */
+	private static boolean isPresent(LivingEntity entity) {
+		return entity instanceof Player ? ((Player) entity).isOnline() : entity.isValid();
+	}
+}
@@ -0,0 +1,212 @@
+package io.github.bensku.sleeper.filter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and histograms of what packet filters do. Recording is safe and
+ * cheap from any thread: counters are striped, so packet threads don't
+ * contend on them.
+ *
+ */
+public class FilterMetrics {
+
+	/**
+	 * Histogram with fixed bucket bounds.
+	 *
+	 */
+	public static class Histogram {
+
+		/**
+		 * Inclusive upper bounds of buckets. Last bucket has no bound.
+		 */
+		private final long[] bounds;
+
+		private final LongAdder[] buckets;
+		private final LongAdder sum;
+
+		Histogram(long... bounds) {
+			this.bounds = bounds;
+			this.buckets = new LongAdder[bounds.length + 1];
+			for (int i = 0; i < buckets.length; i++) {
+				buckets[i] = new LongAdder();
+			}
+			this.sum = new LongAdder();
+		}
+
+		/**
+		 * Records a value.
+		 * @param value Value.
+		 */
+		public void record(long value) {
+			int i = 0;
+			while (i < bounds.length && value > bounds[i]) {
+				i++;
+			}
+			buckets[i].increment();
+			sum.add(value);
+		}
+
+		/**
+		 * Gets number of values recorded.
+		 * @return Count.
+		 */
+		public long getCount() {
+			long count = 0;
+			for (LongAdder bucket : buckets) {
+				count += bucket.sum();
+			}
+			return count;
+		}
+
+		/**
+		 * Gets sum of values recorded.
+		 * @return Sum.
+		 */
+		public long getSum() {
+			return sum.sum();
+		}
+
+		/**
+		 * Estimates a percentile as upper bound of bucket that it is in.
+		 * @param p Percentile between 0 and 1.
+		 * @return Upper bound, or -1 if it is in last bucket (or nothing has
+		 * been recorded).
+		 */
+		public long getPercentile(double p) {
+			long[] counts = new long[buckets.length];
+			long total = 0;
+			for (int i = 0; i < counts.length; i++) {
+				counts[i] = buckets[i].sum();
+				total += counts[i];
+			}
+			long rank = (long) Math.ceil(p * total);
+			long seen = 0;
+			for (int i = 0; i < bounds.length; i++) {
+				seen += counts[i];
+				if (total > 0 && seen >= rank) {
+					return bounds[i];
+				}
+			}
+			return -1;
+		}
+
+		private void write(Appendable out, String name, String help, double scale) throws IOException {
+			out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+			out.append("# TYPE ").append(name).append(" histogram\n");
+			long cumulative = 0;
+			for (int i = 0; i < buckets.length; i++) {
+				cumulative += buckets[i].sum();
+				String bound = i < bounds.length ? format(bounds[i] * scale) : "+Inf";
+				out.append(name).append("_bucket{le=\"").append(bound).append("\"} ")
+						.append(Long.toString(cumulative)).append('\n');
+			}
+			out.append(name).append("_sum ").append(format(sum.sum() * scale)).append('\n');
+			out.append(name).append("_count ").append(Long.toString(cumulative)).append('\n');
+		}
+	}
+
+	/**
+	 * Metadata packets that went through the filter.
+	 */
+	final LongAdder packetsInspected = new LongAdder();
+
+	/**
+	 * Metadata packets that were modified or replaced.
+	 */
+	final LongAdder packetsRewritten = new LongAdder();
+
+	/**
+	 * Pose and bed position items that replaced existing items.
+	 */
+	final LongAdder entriesReplaced = new LongAdder();
+
+	/**
+	 * Pose and bed position items that were added to packets.
+	 */
+	final LongAdder entriesAppended = new LongAdder();
+
+	/**
+	 * Time spent per metadata packet, in nanoseconds.
+	 */
+	final Histogram packetTime = new Histogram(250, 500, 1_000, 2_500, 5_000, 10_000, 25_000, 50_000,
+			100_000, 1_000_000);
+
+	/**
+	 * Number of observers that each forced update was sent to.
+	 */
+	final Histogram updateFanOut = new Histogram(0, 1, 2, 5, 10, 20, 50, 100, 200, 500);
+
+	/**
+	 * Requests to leave bed that players have sent.
+	 */
+	final LongAdder stopSleepingReceived = new LongAdder();
+
+	/**
+	 * Requests to leave bed that were queued to wake players up.
+	 */
+	final LongAdder stopSleepingScheduled = new LongAdder();
+
+	/**
+	 * Requests to leave bed that were denied due to forced sleep.
+	 */
+	final LongAdder stopSleepingDenied = new LongAdder();
+
+	/**
+	 * Writes metrics in Prometheus text format.
+	 * @param out Where to write.
+	 * @throws IOException When writing fails.
+	 */
+	public void writePrometheus(Appendable out) throws IOException {
+		writeCounter(out, "sleeper_metadata_packets_inspected_total", "Metadata packets inspected", packetsInspected);
+		writeCounter(out, "sleeper_metadata_packets_rewritten_total", "Metadata packets modified or replaced", packetsRewritten);
+		writeCounter(out, "sleeper_metadata_entries_replaced_total", "Pose and bed items that replaced existing items", entriesReplaced);
+		writeCounter(out, "sleeper_metadata_entries_appended_total", "Pose and bed items appended to packets", entriesAppended);
+		packetTime.write(out, "sleeper_metadata_packet_seconds", "Time spent per metadata packet", 1e-9);
+		updateFanOut.write(out, "sleeper_force_update_observers", "Observers per forced metadata update", 1);
+		writeCounter(out, "sleeper_stop_sleeping_received_total", "Leave bed requests received", stopSleepingReceived);
+		writeCounter(out, "sleeper_stop_sleeping_scheduled_total", "Leave bed requests scheduled as wake-ups", stopSleepingScheduled);
+		writeCounter(out, "sleeper_stop_sleeping_denied_total", "Leave bed requests denied by forced sleep", stopSleepingDenied);
+	}
+
+	private static void writeCounter(Appendable out, String name, String help, LongAdder counter) throws IOException {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(" counter\n");
+		out.append(name).append(' ').append(Long.toString(counter.sum())).append('\n');
+	}
+
+	private static String format(double value) {
+		return value == (long) value ? Long.toString((long) value) : Double.toString(value);
+	}
+
+	/**
+	 * Describes metrics for humans, e.g. in a command response.
+	 * @return Lines of text.
+	 */
+	public List<String> describe() {
+		List<String> lines = new ArrayList<>();
+		long inspected = packetsInspected.sum();
+		lines.add("Metadata packets: " + inspected + " inspected, " + packetsRewritten.sum() + " rewritten");
+		lines.add("Injected items: " + entriesReplaced.sum() + " replaced, " + entriesAppended.sum() + " appended");
+		long timed = packetTime.getCount();
+		if (timed > 0) {
+			lines.add(String.format(Locale.ROOT, "Time per packet: avg %d ns, p50 %s, p99 %s",
+					packetTime.getSum() / timed, bound(packetTime.getPercentile(0.5), " ns"),
+					bound(packetTime.getPercentile(0.99), " ns")));
+		}
+		long updates = updateFanOut.getCount();
+		lines.add("Forced updates: " + updates + (updates > 0 ? String.format(Locale.ROOT,
+				", avg %.1f observers, p99 %s", (double) updateFanOut.getSum() / updates,
+				bound(updateFanOut.getPercentile(0.99), "")) : ""));
+		lines.add("Leave bed requests: " + stopSleepingReceived.sum() + " received, " + stopSleepingScheduled.sum()
+				+ " scheduled, " + stopSleepingDenied.sum() + " denied");
+		return lines;
+	}
+
+	private static String bound(long value, String unit) {
+		return value == -1 ? "over max bucket" : "<= " + value + unit;
+	}
+}
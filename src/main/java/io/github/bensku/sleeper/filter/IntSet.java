@@ -0,0 +1,120 @@
+package io.github.bensku.sleeper.filter;
+
+import java.util.Arrays;
+
+/**
+ * A small set of ints, e.g. entity ids. Unlike with boxed sets, lookups
+ * don't allocate. All operations are synchronized, since packet filters
+ * may use this from both server and Netty threads.
+ *
+ */
+class IntSet {
+
+	/**
+	 * Marks unused slots. Not a valid entity id.
+	 */
+	private static final int FREE = Integer.MIN_VALUE;
+
+	private int[] slots;
+	private int size;
+
+	IntSet() {
+		this.slots = new int[16];
+		Arrays.fill(slots, FREE);
+	}
+
+	private static int slotOf(int value, int mask) {
+		int hash = value * 0x9E3779B9;
+		return (hash ^ hash >>> 16) & mask;
+	}
+
+	public synchronized boolean contains(int value) {
+		int mask = slots.length - 1;
+		for (int i = slotOf(value, mask);; i = i + 1 & mask) {
+			int slot = slots[i];
+			if (slot == FREE) {
+				return false;
+			} else if (slot == value) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Adds a value to this set.
+	 * @param value Value.
+	 * @return True if the value was not previously present.
+	 */
+	public synchronized boolean add(int value) {
+		int mask = slots.length - 1;
+		int i = slotOf(value, mask);
+		for (;; i = i + 1 & mask) {
+			int slot = slots[i];
+			if (slot == FREE) {
+				break;
+			} else if (slot == value) {
+				return false;
+			}
+		}
+		slots[i] = value;
+		if (++size * 2 > slots.length) {
+			grow();
+		}
+		return true;
+	}
+
+	/**
+	 * Removes a value from this set.
+	 * @param value Value.
+	 * @return True if the value was present.
+	 */
+	public synchronized boolean remove(int value) {
+		int mask = slots.length - 1;
+		int i = slotOf(value, mask);
+		for (;; i = i + 1 & mask) {
+			int slot = slots[i];
+			if (slot == FREE) {
+				return false;
+			} else if (slot == value) {
+				break;
+			}
+		}
+
+		// Shift following values back, so that no probe sequence is broken
+		for (int j = i + 1 & mask;; j = j + 1 & mask) {
+			int slot = slots[j];
+			if (slot == FREE) {
+				break;
+			}
+			int home = slotOf(slot, mask);
+			// Move if home slot is not in cyclic range (i, j]
+			if (i <= j ? (home <= i || home > j) : (home <= i && home > j)) {
+				slots[i] = slot;
+				i = j;
+			}
+		}
+		slots[i] = FREE;
+		size--;
+		return true;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	private void grow() {
+		int[] old = slots;
+		slots = new int[old.length * 2];
+		Arrays.fill(slots, FREE);
+		int mask = slots.length - 1;
+		for (int value : old) {
+			if (value != FREE) {
+				int i = slotOf(value, mask);
+				while (slots[i] != FREE) {
+					i = i + 1 & mask;
+				}
+				slots[i] = value;
+			}
+		}
+	}
+}
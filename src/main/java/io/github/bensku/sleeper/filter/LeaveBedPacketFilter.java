@@ -1,5 +1,17 @@
 package io.github.bensku.sleeper.filter;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
 import org.bukkit.scheduler.BukkitRunnable;
 
 import com.comphenix.protocol.ProtocolLibrary;
@@ -8,21 +20,49 @@ import com.comphenix.protocol.events.ListenerPriority;
 import com.comphenix.protocol.events.PacketAdapter;
 import com.comphenix.protocol.events.PacketEvent;
 import com.comphenix.protocol.events.PacketListener;
-import com.comphenix.protocol.wrappers.EnumWrappers.PlayerAction;
 
+import io.github.bensku.sleeper.SleepStatus;
 import io.github.bensku.sleeper.SleeperApi;
-import io.github.bensku.sleeper.SleeperPlugin;
 import io.github.bensku.sleeper.wrappers.WrapperPlayClientEntityAction;
 
 public class LeaveBedPacketFilter {
-	
+
+	private final Plugin plugin;
 	private final SleeperApi sleeperApi;
+	private final FilterMetrics metrics;
 
 	private final ProtocolManager protocolManager;
 	private final PacketListener packetListener;
 
-	public LeaveBedPacketFilter(SleeperPlugin plugin, SleeperApi api) {
+	/**
+	 * Packet -> action enum.
+	 */
+	private MethodHandle packetAction;
+
+	/**
+	 * NMS action for leaving bed.
+	 */
+	private Object stopSleeping;
+
+	/**
+	 * Players that have a wake up request in {@link #wakeUpQueue}.
+	 */
+	private final Set<Player> pendingWakeUps;
+
+	/**
+	 * Wake up requests from Netty threads, processed once per tick.
+	 */
+	private final Queue<Player> wakeUpQueue;
+
+	/**
+	 * Trace that packets are recorded to, if capture is on.
+	 */
+	private volatile PacketTrace trace;
+
+	public LeaveBedPacketFilter(Plugin plugin, SleeperApi api, FilterMetrics metrics) {
+		this.plugin = plugin;
 		this.sleeperApi = api;
+		this.metrics = metrics;
 		this.protocolManager = ProtocolLibrary.getProtocolManager();
 		this.packetListener = new PacketAdapter(plugin, ListenerPriority.HIGHEST, WrapperPlayClientEntityAction.TYPE) {
 			@Override
@@ -30,26 +70,112 @@ public class LeaveBedPacketFilter {
 				LeaveBedPacketFilter.this.onReceivePacket(event);
 			}
 		};
+		this.pendingWakeUps = ConcurrentHashMap.newKeySet();
+		this.wakeUpQueue = new ConcurrentLinkedQueue<>();
 	}
-	
+
 	public void enable() {
+		initPacketAccess(WrapperPlayClientEntityAction.TYPE.getPacketClass());
 		protocolManager.addPacketListener(packetListener);
+
+		// Process wake up requests once per tick
+		new BukkitRunnable() {
+
+			@Override
+			public void run() {
+				processWakeUps();
+			}
+		}.runTaskTimer(plugin, 1, 1);
+	}
+
+	/**
+	 * Starts or stops recording entity action packets that this filter sees.
+	 * @param trace Trace to record to, or null to stop recording.
+	 */
+	public void setTrace(PacketTrace trace) {
+		this.trace = trace;
 	}
-	
+
+	/**
+	 * Finds the action field of entity action packet. It is the only enum.
+	 * @param packetClass Entity action packet class.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	void initPacketAccess(Class<?> packetClass) {
+		for (Field field : packetClass.getDeclaredFields()) {
+			if (!Modifier.isStatic(field.getModifiers()) && field.getType().isEnum()) {
+				field.setAccessible(true);
+				try {
+					packetAction = MethodHandles.lookup().unreflectGetter(field)
+							.asType(MethodType.methodType(Object.class, Object.class));
+				} catch (IllegalAccessException e) {
+					throw new AssertionError(e);
+				}
+				stopSleeping = Enum.valueOf((Class<? extends Enum>) field.getType(), "STOP_SLEEPING");
+				return;
+			}
+		}
+		throw new AssertionError("unexpected entity action packet structure");
+	}
+
 	private void onReceivePacket(PacketEvent event) {
-		WrapperPlayClientEntityAction packet = new WrapperPlayClientEntityAction(event.getPacket());
-		
+		if (filter(event.getPacket().getHandle(), event.getPlayer())) {
+			event.setCancelled(true);
+		}
+	}
+
+	/**
+	 * Handles an entity action packet from a player. Only leave bed
+	 * requests from players forced to sleep are dropped.
+	 * @param packet NMS entity action packet.
+	 * @param player Player who sent it.
+	 * @return If the packet should be dropped.
+	 */
+	boolean filter(Object packet, Player player) {
+		Object action;
+		try {
+			action = (Object) packetAction.invokeExact(packet);
+		} catch (Throwable e) {
+			throw new AssertionError(e);
+		}
+		PacketTrace trace = this.trace;
+		if (trace != null) {
+			trace.entityAction(player.getEntityId(), ((Enum<?>) action).ordinal(), sleeperApi.getSleepStatus(player));
+		}
+		if (action != stopSleeping) {
+			return false; // Sneaking, sprinting, etc.
+		}
+
 		// When player wants to stop sleeping, wake them up
-		if (packet.getAction() == PlayerAction.STOP_SLEEPING) {
+		metrics.stopSleepingReceived.increment();
+		SleepStatus status = sleeperApi.getSleepStatus(player); // Safe here
+		if (status == SleepStatus.FORCED_SLEEP) {
+			metrics.stopSleepingDenied.increment();
+			return true; // Player cannot wake themself up
+		} else if (status == SleepStatus.SLEEPING) {
 			// We're not in server thread, not safe to do pretty much anything here
-			SleeperPlugin.runTask(new BukkitRunnable() {
-				
-				@Override
-				public void run() {
-					// Trying to wake up might fail, e.g. in case of forced sleep; that's ok
-					sleeperApi.attemptWakeUp(event.getPlayer());
-				}
-			});
+			// Queue the request, unless there is one already
+			if (pendingWakeUps.add(player)) {
+				wakeUpQueue.offer(player);
+				metrics.stopSleepingScheduled.increment();
+			}
+		}
+		// Requests of players that are awake to us are passed to server, not
+		// dropped: players sleeping in real beds use them to get up
+		return false;
+	}
+
+	/**
+	 * Processes all queued wake up requests. Must be called on server thread.
+	 */
+	private void processWakeUps() {
+		Player player;
+		while ((player = wakeUpQueue.poll()) != null) {
+			pendingWakeUps.remove(player);
+			if (player.isOnline()) {
+				// Trying to wake up might fail, e.g. in case of forced sleep; that's ok
+				sleeperApi.attemptWakeUp(player);
+			}
 		}
 	}
 }
@@ -1,58 +1,223 @@
 package io.github.bensku.sleeper.filter;
 
-import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Level;
 
-import org.bukkit.Bukkit;
 import org.bukkit.Location;
 import org.bukkit.entity.Entity;
+import org.bukkit.entity.LivingEntity;
 import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitRunnable;
 
+import com.comphenix.protocol.PacketType;
 import com.comphenix.protocol.ProtocolLibrary;
 import com.comphenix.protocol.ProtocolManager;
 import com.comphenix.protocol.events.ListenerPriority;
 import com.comphenix.protocol.events.PacketAdapter;
+import com.comphenix.protocol.events.PacketContainer;
 import com.comphenix.protocol.events.PacketEvent;
 import com.comphenix.protocol.events.PacketListener;
-import com.comphenix.protocol.wrappers.WrappedDataWatcher;
-import com.comphenix.protocol.wrappers.WrappedDataWatcher.Registry;
-import com.comphenix.protocol.wrappers.WrappedDataWatcher.WrappedDataWatcherObject;
-import com.comphenix.protocol.wrappers.WrappedWatchableObject;
 
+import io.github.bensku.sleeper.EntityIndex;
+import io.github.bensku.sleeper.EntityTable;
 import io.github.bensku.sleeper.SleepStatus;
 import io.github.bensku.sleeper.SleepTracker;
-import io.github.bensku.sleeper.SleeperPlugin;
+import io.github.bensku.sleeper.jfr.FlightRecorderSupport;
+import io.github.bensku.sleeper.jfr.ForceUpdateEvent;
+import io.github.bensku.sleeper.jfr.MetadataRewriteEvent;
+import io.github.bensku.sleeper.nms.NmsAccess;
 import io.github.bensku.sleeper.wrappers.WrapperPlayServerEntityMetadata;
 
 /**
- * Filters entity metadata of players to make them appear sleeping.
+ * Filters entity metadata of players and other living entities to make them
+ * appear sleeping.
  *
  */
 public class MetadataPacketFilter {
 
-	private static final int POSE_INDEX = 6;
-	
 	/**
-	 * Bed position index. Changed from 1.14 to 1.15.
+	 * Ways to intercept metadata packets.
+	 *
 	 */
-	private static final int BED_POS_INDEX = Bukkit.getVersion().contains("1.14") ? 12 : 13;
+	public enum Backend {
 
+		/**
+		 * Use a ProtocolLib packet listener.
+		 */
+		PROTOCOLLIB,
+
+		/**
+		 * Install our own handler to each player's Netty pipeline.
+		 */
+		NETTY
+	}
+
+	/**
+	 * Size of {@link #bedItems} cache. Must be a power of two.
+	 */
+	private static final int BED_CACHE_SIZE = 1024;
+
+	/**
+	 * Bed position metadata item of a player, for one block position.
+	 *
+	 */
+	private static class BedItem {
+
+		final int entityId;
+		final int x, y, z;
+		final Object item;
+
+		BedItem(int entityId, int x, int y, int z, Object item) {
+			this.entityId = entityId;
+			this.x = x;
+			this.y = y;
+			this.z = z;
+			this.item = item;
+		}
+	}
+
+	/**
+	 * Items of a metadata packet that we built with final sleep status for
+	 * its observers. The type marks the packet, so that filter can let it
+	 * pass untouched.
+	 *
+	 */
+	private static class PreparedItems extends ArrayList<Object> {
+
+		PreparedItems(int capacity) {
+			super(capacity);
+		}
+	}
+
+	/**
+	 * A player that receives metadata packets.
+	 *
+	 */
+	private static class Observer {
+
+		/**
+		 * Index of this observer in {@link SleepVisibility}.
+		 */
+		final int index;
+
+		/**
+		 * Entity ids of players that this observer has last been shown
+		 * sleeping.
+		 */
+		final IntSet shownSleeping;
+
+		Observer(int index) {
+			this.index = index;
+			this.shownSleeping = new IntSet();
+		}
+	}
+
+	/**
+	 * An observer that started tracking a sleeping entity.
+	 *
+	 */
+	private static class SpawnUpdate {
+
+		final Player observer;
+		final int entityId;
+
+		SpawnUpdate(Player observer, int entityId) {
+			this.observer = observer;
+			this.entityId = entityId;
+		}
+	}
+
+	private final Plugin plugin;
 	private final SleepTracker sleepTracker;
+	private final EntityIndex<Player> players;
+
+	/**
+	 * Living entities other than players that have a sleep status.
+	 */
+	private final EntityTable<LivingEntity> entities;
 
+	private final Backend backend;
+	private final FilterMetrics metrics;
 	private final ProtocolManager protocolManager;
 	private final PacketListener packetListener;
-	
-	private Class<?> blockPosClass;
-	private Constructor<?> blockPosConstructor;
-	
-	private Class<?> poseEnum;
-	private Object poseSleeping;
-
-	public MetadataPacketFilter(SleeperPlugin plugin) {
-		this.sleepTracker = new SleepTracker();
+	private final PacketListener spawnListener;
+
+	/**
+	 * Pipeline injector, if {@link Backend#NETTY} is used.
+	 */
+	private NettyMetadataInjector injector;
+
+	/**
+	 * Item that sets pose to sleeping.
+	 */
+	private final Object sleepingPoseItem;
+
+	/**
+	 * Item that clears bed position.
+	 */
+	private final Object noBedItem;
+
+	/**
+	 * Bed position items of sleeping players, cached until they change
+	 * block position. Slot is determined by entity id; collisions just
+	 * cause a new item to be created.
+	 */
+	private final AtomicReferenceArray<BedItem> bedItems;
+
+	/**
+	 * Locations that packet threads can copy player positions to.
+	 */
+	private final ThreadLocal<Location> locations;
+
+	/**
+	 * Observers by player.
+	 */
+	private final Map<Player, Observer> observers;
+
+	/**
+	 * Who can see whose sleep.
+	 */
+	private final SleepVisibility visibility;
+
+	/**
+	 * Entities that need to be updated at end of this tick. Only accessed
+	 * from server thread.
+	 */
+	private Set<Entity> pendingUpdates;
+
+	/**
+	 * Observers that need to be sent sleep status of an entity they just
+	 * started tracking. Filled from packet threads, sent at end of tick.
+	 */
+	private final Queue<SpawnUpdate> spawnUpdates;
+
+	/**
+	 * Trace that packets are recorded to, if capture is on.
+	 */
+	private volatile PacketTrace trace;
+
+	public MetadataPacketFilter(Plugin plugin, SleepTracker sleepTracker, EntityIndex<Player> players,
+			EntityTable<LivingEntity> entities, Backend backend, FilterMetrics metrics) {
+		this.plugin = plugin;
+		this.sleepTracker = sleepTracker;
+		this.players = players;
+		this.entities = entities;
+		this.backend = backend;
+		this.metrics = metrics;
 		this.protocolManager = ProtocolLibrary.getProtocolManager();
 		this.packetListener = new PacketAdapter(plugin, ListenerPriority.HIGHEST, WrapperPlayServerEntityMetadata.TYPE) {
 			@Override
@@ -60,61 +225,401 @@ public class MetadataPacketFilter {
 				MetadataPacketFilter.this.onSendPacket(event);
 			}
 		};
+		this.spawnListener = new PacketAdapter(plugin, ListenerPriority.MONITOR,
+				PacketType.Play.Server.NAMED_ENTITY_SPAWN, PacketType.Play.Server.SPAWN_ENTITY_LIVING) {
+			@Override
+			public void onPacketSending(PacketEvent event) {
+				MetadataPacketFilter.this.onSpawnPacket(event);
+			}
+		};
+		try {
+			this.sleepingPoseItem = (Object) NmsAccess.NEW_ITEM.invokeExact(NmsAccess.POSE_OBJECT, NmsAccess.POSE_SLEEPING);
+			this.noBedItem = (Object) NmsAccess.NEW_ITEM.invokeExact(NmsAccess.BED_POS_OBJECT, (Object) Optional.empty());
+		} catch (Throwable e) {
+			throw new AssertionError(e);
+		}
+		this.bedItems = new AtomicReferenceArray<>(BED_CACHE_SIZE);
+		this.locations = ThreadLocal.withInitial(() -> new Location(null, 0, 0, 0));
+		this.observers = new ConcurrentHashMap<>();
+		this.visibility = new SleepVisibility();
+		this.pendingUpdates = new LinkedHashSet<>();
+		this.spawnUpdates = new ConcurrentLinkedQueue<>();
 	}
-	
+
 	public void enable() {
+		if (backend == Backend.NETTY) {
+			// Players are injected as they're added as observers
+			injector = new NettyMetadataInjector(plugin, this);
+		} else {
+			protocolManager.addPacketListener(packetListener);
+		}
+		protocolManager.addPacketListener(spawnListener); // Rare, ProtocolLib is fine
+
+		// Send pending updates once per tick
+		new BukkitRunnable() {
+
+			@Override
+			public void run() {
+				flushUpdates();
+			}
+		}.runTaskTimer(plugin, 1, 1);
+	}
+
+	/**
+	 * Removes Netty handlers from connections of all observers, so that
+	 * they don't keep calling this filter after the plugin is disabled.
+	 */
+	public void disable() {
+		if (injector != null) {
+			for (Player observer : observers.keySet()) {
+				injector.uninject(observer);
+			}
+		}
+	}
+
+	/**
+	 * Falls back to ProtocolLib after Netty handler could not be installed.
+	 * @param player Player whose connection the handler was not installed to.
+	 * @param e Cause of failure.
+	 */
+	private void fallBackToProtocolLib(Player player, ReflectiveOperationException e) {
+		plugin.getLogger().log(Level.SEVERE, "cannot install Netty metadata handler, using ProtocolLib instead", e);
+		NettyMetadataInjector failed = injector;
+		injector = null;
+		for (Player observer : observers.keySet()) {
+			if (observer != player) {
+				failed.uninject(observer); // Don't rewrite packets twice
+			}
+		}
 		protocolManager.addPacketListener(packetListener);
 	}
 
 	/**
-	 * Forces an entity to be updated to all connected players. Use this after
-	 * changing sleep status to show changes.
+	 * Starts or stops recording metadata packets that this filter sees.
+	 * @param trace Trace to record to, or null to stop recording.
+	 */
+	public void setTrace(PacketTrace trace) {
+		this.trace = trace;
+	}
+
+	/**
+	 * Schedules an entity to be updated to players that can see it at end of
+	 * current tick. No matter how many times this is called during a tick,
+	 * the entity is updated only once, with the status it has at that point.
+	 * @param entity Entity to update.
+	 */
+	public void scheduleUpdate(Entity entity) {
+		pendingUpdates.add(entity);
+	}
+
+	/**
+	 * Immediately sends all pending updates.
+	 * @see #scheduleUpdate(Entity)
+	 */
+	public void flushUpdates() {
+		if (!spawnUpdates.isEmpty()) {
+			sendSpawnUpdates();
+		}
+		if (pendingUpdates.isEmpty()) {
+			return;
+		}
+		ForceUpdateEvent event = FlightRecorderSupport.AVAILABLE ? ForceUpdateEvent.start() : null;
+
+		// Send listeners might schedule more updates; those go to next flush
+		Set<Entity> updates = pendingUpdates;
+		pendingUpdates = new LinkedHashSet<>();
+		int observers = 0;
+		for (Entity entity : updates) {
+			if (entity.isValid()) {
+				observers += sendForcedUpdate(entity);
+			}
+		}
+		if (event != null) {
+			event.entities = updates.size();
+			event.observers = observers;
+			event.commit();
+		}
+	}
+
+	/**
+	 * Forces an entity to be updated to players that can see it. Use this
+	 * after changing sleep status to show changes. Players that start
+	 * tracking the entity later will be updated automatically.
 	 * @param entity Entity to update to players.
 	 */
 	public void forceUpdate(Entity entity) {
-		// Get entity flags (on fire, etc.)
-		Byte flags = WrappedDataWatcher.getEntityWatcher(entity).getByte(0);
-		if (flags == null) { // If not set, all flags off by default
-			flags = 0;
-		}
-
-		// Prepare packet that sets flags to their previous values
-		// (i.e. doesn't change anything)
-		WrapperPlayServerEntityMetadata packet = new WrapperPlayServerEntityMetadata();
-		WrappedDataWatcher watcher = new WrappedDataWatcher();
-		WrappedDataWatcherObject object = new WrappedDataWatcherObject(0, Registry.get(Byte.class));
-		watcher.setObject(object, flags);
-
-		packet.setEntityID(entity.getEntityId());
-		packet.setMetadata(watcher.getWatchableObjects());
-
-		// Send to ALL players
-		// Sending to only nearby players seems to not be fully reliable
-		// e.g. sometimes the sleeping player fails to receive packet
-		for (Player observer : Bukkit.getOnlinePlayers()) {
+		sendForcedUpdate(entity);
+	}
+
+	private int sendForcedUpdate(Entity entity) {
+		List<Player> observers = getObservers(entity);
+		metrics.updateFanOut.record(observers.size());
+		sendUpdate(entity, observers);
+		return observers.size();
+	}
+
+	/**
+	 * Gets players who are sent updates of an entity.
+	 * @param entity Entity.
+	 * @return Players tracking the entity, and the entity itself if it is
+	 * a player.
+	 */
+	public List<Player> getObservers(Entity entity) {
+		List<Player> observers = new ArrayList<>(protocolManager.getEntityTrackers(entity));
+		if (entity instanceof Player) {
+			// Players don't track themselves, but they need to see their sleep
+			observers.add((Player) entity);
+		}
+		return observers;
+	}
+
+	/**
+	 * Sends sleep status of an entity to given observers. At most two
+	 * packets are built, one for observers who see the entity sleeping and
+	 * one for those who see it awake; our filter lets them pass untouched.
+	 * @param entity Entity to update.
+	 * @param observers Players to send the update to.
+	 */
+	private void sendUpdate(Entity entity, Collection<Player> observers) {
+		int entityId = entity.getEntityId();
+		SleepStatus status = sleepTracker.getSleepStatus(entityId);
+		PacketContainer sleepingPacket = null; // Built when first needed
+		PacketContainer awakePacket = null;
+		try {
+			for (Player observer : observers) {
+				Observer state = this.observers.get(observer);
+				PacketContainer packet;
+				if (status == SleepStatus.AWAKE || state != null && !visibility.canSee(entity, state.index)) {
+					// Like in rewrite(), only observers that saw the entity
+					// sleeping need to be told that it woke up
+					if (state != null && !state.shownSleeping.remove(entityId)) {
+						continue;
+					}
+					if (awakePacket == null) {
+						awakePacket = createPacket(entityId, null, noBedItem);
+					}
+					packet = awakePacket;
+				} else {
+					if (state != null) {
+						state.shownSleeping.add(entityId);
+					}
+					if (sleepingPacket == null) {
+						Location loc = entity.getLocation(locations.get());
+						Object bedItem = getBedItem(entityId, loc.getBlockX(), loc.getBlockY(), loc.getBlockZ());
+						sleepingPacket = createPacket(entityId, sleepingPoseItem, bedItem);
+					}
+					packet = sleepingPacket;
+				}
+				protocolManager.sendServerPacket(observer, packet);
+			}
+		} catch (InvocationTargetException e) {
+			throw new AssertionError(e);
+		} catch (Throwable e) {
+			throw new AssertionError("metadata packet creation failure", e);
+		}
+	}
+
+	/**
+	 * Creates a metadata packet that has only pose and bed position items.
+	 * @param entityId Entity id.
+	 * @param poseItem Pose item, or null to leave pose alone.
+	 * @param bedItem Bed position item.
+	 * @return A new packet, marked so that filter doesn't touch it.
+	 * @throws Throwable When NMS access fails.
+	 */
+	private PacketContainer createPacket(int entityId, Object poseItem, Object bedItem) throws Throwable {
+		List<Object> items = new PreparedItems(2);
+		if (poseItem != null) {
+			items.add(poseItem);
+		}
+		items.add(bedItem);
+		Object packet = (Object) NmsAccess.NEW_PACKET.invokeExact();
+		NmsAccess.SET_PACKET_ENTITY_ID.invokeExact(packet, entityId);
+		NmsAccess.SET_PACKET_ITEMS.invokeExact(packet, items);
+		return new PacketContainer(WrapperPlayServerEntityMetadata.TYPE, packet);
+	}
+
+	/**
+	 * Spawn packet handler that makes sure observers who start tracking a
+	 * player or other living entity see their current sleep status.
+	 * @param event Packet event.
+	 */
+	private void onSpawnPacket(PacketEvent event) {
+		if (event.isCancelled()) {
+			return; // Observer won't see the entity after all
+		}
+		int entityId = event.getPacket().getIntegers().read(0);
+		SleepStatus status = sleepTracker.getTrackedStatus(entityId);
+		if (status == null) {
+			return; // Entity has always been awake, nothing to do
+		}
+
+		// Client has forgotten whatever we showed it before
+		Player observer = event.getPlayer();
+		Observer state = observers.get(observer);
+		if (state != null) {
+			state.shownSleeping.remove(entityId);
+		}
+
+		if (status != SleepStatus.AWAKE && NmsAccess.VERSION.hasSpawnMetadata()) {
+			// Since 1.15, spawn is followed by full metadata, which we rewrite
+			// Before that, spawn itself has it, so update again at end of tick
+			spawnUpdates.offer(new SpawnUpdate(observer, entityId));
+		}
+	}
+
+	/**
+	 * Sends sleep status to observers that have recently started tracking
+	 * sleeping entities. Must be called on server thread.
+	 */
+	private void sendSpawnUpdates() {
+		SpawnUpdate update;
+		while ((update = spawnUpdates.poll()) != null) {
+			LivingEntity target = getTarget(update.entityId);
+			if (target != null && update.observer.isOnline()) {
+				sendUpdate(target, Collections.singletonList(update.observer));
+			}
+		}
+	}
+
+	/**
+	 * Gets bed position item for a player.
+	 * @param entityId Entity id of player.
+	 * @param x Bed x.
+	 * @param y Bed y.
+	 * @param z Bed z.
+	 * @return A DataWatcher item.
+	 * @throws Throwable When item creation fails.
+	 */
+	private Object getBedItem(int entityId, int x, int y, int z) throws Throwable {
+		int slot = entityId & BED_CACHE_SIZE - 1;
+		BedItem cached = bedItems.get(slot);
+		if (cached != null && cached.entityId == entityId && cached.x == x && cached.y == y && cached.z == z) {
+			return cached.item;
+		}
+
+		// Player moved (or cache miss), create new item
+		Object blockPos = (Object) NmsAccess.NEW_BLOCK_POS.invokeExact(x, y, z);
+		Object item = (Object) NmsAccess.NEW_ITEM.invokeExact(NmsAccess.BED_POS_OBJECT, (Object) Optional.of(blockPos));
+		bedItems.set(slot, new BedItem(entityId, x, y, z, item));
+		return item;
+	}
+
+	/**
+	 * Starts tracking what an observer has been shown. Until this is called,
+	 * the observer may receive redundant metadata, and with
+	 * {@link Backend#NETTY}, no metadata is filtered at all. Call this only
+	 * after {@link #enable()}.
+	 * @param observer Player that receives metadata packets.
+	 */
+	public void addObserver(Player observer) {
+		Observer previous = observers.put(observer, new Observer(visibility.allocateIndex()));
+		if (previous != null) {
+			visibility.releaseIndex(previous.index);
+		}
+		if (injector != null) {
 			try {
-				protocolManager.sendServerPacket(observer, packet.getHandle());
-			} catch (InvocationTargetException e) {
-				throw new AssertionError(e);
+				injector.inject(observer);
+			} catch (ReflectiveOperationException e) {
+				fallBackToProtocolLib(observer, e);
 			}
 		}
 	}
-	
+
+	/**
+	 * Stops tracking what an observer has been shown. This also forgets
+	 * who could see them sleeping, and with {@link Backend#NETTY}, removes
+	 * our handler from their connection.
+	 * @param observer Player that receives metadata packets.
+	 */
+	public void removeObserver(Player observer) {
+		Observer state = observers.remove(observer);
+		if (state != null) {
+			visibility.releaseIndex(state.index);
+		}
+		visibility.reset(observer);
+		if (injector != null) {
+			injector.uninject(observer);
+		}
+	}
+
+	/**
+	 * Forgets what observers have been shown of an entity that is gone,
+	 * e.g. because it died, was unloaded or left. If it comes back, it has
+	 * a new entity id.
+	 * @param entityId Entity id.
+	 */
+	public void forgetEntity(int entityId) {
+		for (Observer state : observers.values()) {
+			state.shownSleeping.remove(entityId);
+		}
+	}
+
+	/**
+	 * Shows or hides sleep of a player from some observers. The change is
+	 * sent to observers at end of tick.
+	 * @param target Player whose sleep visibility is changed.
+	 * @param observers Observers.
+	 * @param visible If the observers should see target sleeping.
+	 */
+	public void setSleepVisible(Player target, Collection<? extends Player> observers, boolean visible) {
+		visibility.setVisible(target, getIndices(observers), visible);
+		scheduleUpdate(target);
+	}
+
+	/**
+	 * Makes sleep of a player visible to only some observers. The change is
+	 * sent to observers at end of tick.
+	 * @param target Player whose sleep visibility is changed.
+	 * @param observers Observers who can see target sleeping.
+	 */
+	public void setSleepOnlyVisible(Player target, Collection<? extends Player> observers) {
+		visibility.setOnlyVisible(target, getIndices(observers));
+		scheduleUpdate(target);
+	}
+
+	/**
+	 * Makes sleep of a player visible to everyone, which is the default.
+	 * @param target Player whose sleep visibility is changed.
+	 */
+	public void resetSleepVisibility(Player target) {
+		visibility.reset(target);
+		scheduleUpdate(target);
+	}
+
 	/**
-	 * Late initialization that we can't do before we have access to a
-	 * {@link Player}. Mostly deep reflection for NMS access.
+	 * Checks if an observer would see a player or other entity sleeping, if
+	 * they were. Safe to call from any thread.
+	 * @param observer Observer.
+	 * @param target Entity that might be sleeping.
+	 * @return If the observer can see target's sleep.
 	 */
-	private void lateInit(Player player) throws NoSuchMethodException, SecurityException, IllegalAccessException, IllegalArgumentException, InvocationTargetException, ClassNotFoundException {
-		Method getHandleMethod = player.getClass().getMethod("getHandle");
-		Object nmsPlayer = getHandleMethod.invoke(player);
-		
-		blockPosClass = Class.forName(nmsPlayer.getClass().getPackage().getName() + ".BlockPosition");
-		blockPosConstructor = blockPosClass.getConstructor(int.class, int.class, int.class);
-		
-		poseEnum = Class.forName(nmsPlayer.getClass().getPackage().getName() + ".EntityPose");
-		Method valueOf = poseEnum.getMethod("valueOf", String.class);
-		
-		poseSleeping = valueOf.invoke(null, "SLEEPING");
+	public boolean canSeeSleep(Player observer, Entity target) {
+		Observer state = observers.get(observer);
+		return state == null || visibility.canSee(target, state.index);
+	}
+
+	/**
+	 * Gets a player or other living entity that has a sleep status by id.
+	 * Safe to call from any thread.
+	 * @param entityId Entity id.
+	 * @return The entity, or null if it has no sleep status.
+	 */
+	LivingEntity getTarget(int entityId) {
+		Player player = players.get(entityId);
+		return player != null ? player : entities.get(entityId);
+	}
+
+	private int[] getIndices(Collection<? extends Player> players) {
+		int[] indices = new int[players.size()];
+		int count = 0;
+		for (Player player : players) {
+			Observer state = observers.get(player);
+			if (state != null) { // Ignore players who have already left
+				indices[count++] = state.index;
+			}
+		}
+		return count == indices.length ? indices : Arrays.copyOf(indices, count);
 	}
 
 	/**
@@ -123,67 +628,188 @@ public class MetadataPacketFilter {
 	 * @param event Packet event.
 	 */
 	private void onSendPacket(PacketEvent event) {
-		// Using PacketWrapper here (no need to look at Minecraft source)
-		WrapperPlayServerEntityMetadata packet = new WrapperPlayServerEntityMetadata(event.getPacket());
-		Entity entity = packet.getEntity(event);
-		if (!(entity instanceof Player)) {
-			return; // Only processing players here
-		}
-		
-		// Now that we have a player, do some late initialization (one time only)
-		Player player = (Player) entity;
-		if (poseSleeping == null) {
-			try {
-				lateInit(player);
-			} catch (NoSuchMethodException | SecurityException | IllegalAccessException | IllegalArgumentException
-					| InvocationTargetException | ClassNotFoundException e) {
-				throw new AssertionError("late init failure", e);
-			}
+		Object packet = event.getPacket().getHandle();
+		Object result;
+		try {
+			result = rewrite(packet, event.getPlayer());
+		} catch (Throwable e) {
+			throw new AssertionError("metadata rewrite failure", e);
+		}
+		if (result != packet) {
+			event.setPacket(new PacketContainer(WrapperPlayServerEntityMetadata.TYPE, result));
+		}
+	}
+
+	/**
+	 * Injects desired sleep status to an entity metadata packet.
+	 * @param packet NMS metadata packet.
+	 * @param observer Player who will receive the packet.
+	 * @return The given packet, or a modified copy of it that is only for
+	 * the observer.
+	 * @throws Throwable When NMS access fails.
+	 */
+	Object rewrite(Object packet, Player observer) throws Throwable {
+		long start = System.nanoTime();
+		metrics.packetsInspected.increment();
+		Object result = injectStatus(packet, observer);
+		metrics.packetTime.record(System.nanoTime() - start);
+		return result;
+	}
+
+	private Object injectStatus(Object packet, Player observer) throws Throwable {
+		// Most metadata packets are for entities that have always been
+		// awake; reject them quickly
+		int entityId = (int) NmsAccess.PACKET_ENTITY_ID.invokeExact(packet);
+		PacketTrace trace = this.trace;
+		if (trace != null) {
+			record(trace, packet, entityId, observer);
+		}
+		SleepStatus status = sleepTracker.getTrackedStatus(entityId);
+		if (status == null) {
+			return packet; // Sleep status was never changed
+		}
+		LivingEntity target = getTarget(entityId);
+		if (target == null) {
+			return packet; // Only processing online players and loaded entities
+		}
+		if ((List<?>) NmsAccess.PACKET_ITEMS.invokeExact(packet) instanceof PreparedItems) {
+			return packet; // Built by sendUpdate() with final status
 		}
 
-		SleepStatus status = sleepTracker.getSleepStatus(player);
-		WrappedWatchableObject poseObj = null;
-		WrappedWatchableObject bedPosObj;
-		
-		if (status == SleepStatus.AWAKE) {
+		MetadataRewriteEvent event = FlightRecorderSupport.AVAILABLE ? MetadataRewriteEvent.start() : null;
+		Object result = injectStatus(packet, observer, entityId, status, target, event);
+		if (event != null && event.replaced + event.appended > 0) { // Only record rewrites
+			event.entityId = entityId;
+			event.copied = result != packet;
+			event.commit();
+		}
+		return result;
+	}
+
+	private Object injectStatus(Object packet, Player observer, int entityId, SleepStatus status, LivingEntity target,
+			MetadataRewriteEvent event) throws Throwable {
+		Observer state = observers.get(observer);
+		IntSet shown = state != null ? state.shownSleeping : null;
+		if (status == SleepStatus.AWAKE || state != null && !visibility.canSee(target, state.index)) {
+			// Observers that may not see sleep see target as awake
+			// Only observers that saw the target sleeping need to be told
+			// that they woke up; for others, their bed position is as it was
+			if (shown != null && !shown.remove(entityId)) {
+				return packet;
+			}
+
 			// Remove bed position to actually wake up
-			bedPosObj = new WrappedWatchableObject(new WrappedDataWatcherObject(BED_POS_INDEX, Registry.getBlockPositionSerializer(true)), Optional.empty());
+			// Other observers of this packet probably don't need that
+			return inject(packet, entityId, null, noBedItem, true, event);
 		} else {
+			if (shown != null) {
+				shown.add(entityId);
+			}
+
+			// Set bed position to where target is (no real bed needed)
+			Location loc = target.getLocation(locations.get());
+			Object bedItem = getBedItem(entityId, loc.getBlockX(), loc.getBlockY(), loc.getBlockZ());
+
 			// Force pose to sleeping, no matter what it might've been before
-			poseObj = new WrappedWatchableObject(new WrappedDataWatcherObject(POSE_INDEX, Registry.get(poseEnum)), poseSleeping);
-			
-			// Set bed position to where player is (no real bed needed)
-			Location loc = player.getLocation();
-			try {
-				bedPosObj = new WrappedWatchableObject(new WrappedDataWatcherObject(BED_POS_INDEX, Registry.getBlockPositionSerializer(true)),
-						Optional.of(blockPosConstructor.newInstance(loc.getBlockX(), loc.getBlockY(), loc.getBlockZ())));
-			} catch (InstantiationException | IllegalAccessException | IllegalArgumentException
-					| InvocationTargetException e) {
-				throw new AssertionError(e);
-			}
-		}
-		
-		// Replace existing watchables for pose and bed position
-		List<WrappedWatchableObject> watchables = packet.getMetadata();
-		for (int i = 0; i < watchables.size(); i++) {
-			WrappedWatchableObject obj = watchables.get(i);
-			if (poseObj != null && obj.getIndex() == POSE_INDEX) {
-				watchables.set(i, poseObj);
-				poseObj = null;
-			} else if (bedPosObj != null && obj.getIndex() == BED_POS_INDEX) {
-				watchables.set(i, bedPosObj);
-				bedPosObj = null;
+			// If some observers of this packet must see target awake, only
+			// modify a copy; otherwise, everyone needs the same changes
+			return inject(packet, entityId, sleepingPoseItem, bedItem, visibility.isRestricted(target), event);
+		}
+	}
+
+	/**
+	 * Records a metadata packet to a trace, as it was before rewriting.
+	 * @param trace Trace.
+	 * @param packet NMS metadata packet.
+	 * @param entityId Entity id in the packet.
+	 * @param observer Player who will receive the packet.
+	 * @throws Throwable When NMS access fails.
+	 */
+	@SuppressWarnings("unchecked")
+	private void record(PacketTrace trace, Object packet, int entityId, Player observer) throws Throwable {
+		LivingEntity target = getTarget(entityId);
+		byte targetKind = target instanceof Player ? PacketTrace.TARGET_PLAYER
+				: target != null ? PacketTrace.TARGET_ENTITY : PacketTrace.TARGET_NONE;
+		List<Object> items = (List<Object>) NmsAccess.PACKET_ITEMS.invokeExact(packet);
+		byte[] indices = new byte[items != null ? items.size() : 0];
+		for (int i = 0; i < indices.length; i++) {
+			indices[i] = (byte) (int) NmsAccess.ITEM_INDEX.invokeExact(items.get(i));
+		}
+		trace.metadata(observer.getEntityId(), entityId, sleepTracker.getTrackedStatus(entityId), targetKind, indices);
+	}
+
+	/**
+	 * Replaces or adds pose and bed position items in a packet.
+	 * @param packet NMS metadata packet.
+	 * @param entityId Entity id in the packet.
+	 * @param poseItem Pose item, or null to leave pose alone.
+	 * @param bedItem Bed position item, or null to leave it alone.
+	 * @param copy If the changes should be made to a copy of the packet.
+	 * Otherwise, the given packet is modified, which is only safe if all
+	 * observers that it might be sent to need the same changes.
+	 * @param event Flight recorder event to fill, or null.
+	 * @return The packet that was modified.
+	 * @throws Throwable When NMS access fails.
+	 */
+	@SuppressWarnings("unchecked")
+	private Object inject(Object packet, int entityId, Object poseItem, Object bedItem, boolean copy,
+			MetadataRewriteEvent event) throws Throwable {
+		List<Object> items = (List<Object>) NmsAccess.PACKET_ITEMS.invokeExact(packet);
+		if (items == null) {
+			items = Collections.emptyList();
+		}
+		metrics.packetsRewritten.increment();
+		int injected = (poseItem != null ? 1 : 0) + (bedItem != null ? 1 : 0);
+		int size = items.size();
+		List<Object> result = copy ? new ArrayList<>(size + 2) : items;
+		if (copy) {
+			result.addAll(items);
+		}
+
+		// Replace existing items for pose and bed position
+		// Same packet may be sent to many players concurrently, but that is
+		// fine as long as we replace them with same values
+		for (int i = 0; i < size; i++) {
+			int index = (int) NmsAccess.ITEM_INDEX.invokeExact(result.get(i));
+			if (poseItem != null && index == NmsAccess.POSE_INDEX) {
+				result.set(i, poseItem);
+				poseItem = null;
+			} else if (bedItem != null && index == NmsAccess.BED_POS_INDEX) {
+				result.set(i, bedItem);
+				bedItem = null;
 			}
 		}
+
 		// Or if we didn't replace, add them to end
-		if (poseObj != null) {
-			watchables.add(poseObj);
+		// Appending to shared list is not safe, so we copy it
+		int appended = (poseItem != null ? 1 : 0) + (bedItem != null ? 1 : 0);
+		metrics.entriesReplaced.add(injected - appended);
+		if (event != null) {
+			event.replaced = injected - appended;
+			event.appended = appended;
 		}
-		if (bedPosObj != null) {
-			watchables.add(bedPosObj);
+		if (appended > 0) {
+			metrics.entriesAppended.add(appended);
+			if (!copy) {
+				result = new ArrayList<>(size + 2);
+				result.addAll(items);
+			}
+			if (poseItem != null) {
+				result.add(poseItem);
+			}
+			if (bedItem != null) {
+				result.add(bedItem);
+			}
+		}
+
+		if (copy) {
+			Object newPacket = (Object) NmsAccess.NEW_PACKET.invokeExact();
+			NmsAccess.SET_PACKET_ENTITY_ID.invokeExact(newPacket, entityId);
+			NmsAccess.SET_PACKET_ITEMS.invokeExact(newPacket, result);
+			return newPacket;
+		} else if (result != items) {
+			NmsAccess.SET_PACKET_ITEMS.invokeExact(packet, result);
 		}
-		
-		// Replace watchables in packet with our modified list
-		packet.getHandle().getWatchableCollectionModifier().write(0, watchables);
+		return packet;
 	}
 }
@@ -0,0 +1,154 @@
+package io.github.bensku.sleeper.filter;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bukkit.Location;
+import org.bukkit.entity.LivingEntity;
+import org.bukkit.entity.Player;
+import org.bukkit.scheduler.BukkitRunnable;
+
+import com.comphenix.protocol.PacketType;
+import com.comphenix.protocol.ProtocolLibrary;
+import com.comphenix.protocol.ProtocolManager;
+import com.comphenix.protocol.events.ListenerPriority;
+import com.comphenix.protocol.events.PacketAdapter;
+import com.comphenix.protocol.events.PacketContainer;
+import com.comphenix.protocol.events.PacketEvent;
+import com.comphenix.protocol.events.PacketListener;
+
+import io.github.bensku.sleeper.SleepStatus;
+import io.github.bensku.sleeper.SleepTracker;
+import io.github.bensku.sleeper.SleeperPlugin;
+
+/**
+ * Drops movement, rotation and animation packets of sleeping players and
+ * other living entities, since observers see them lying in bed anyway. When
+ * they wake up, their real position is sent to observers with one teleport.
+ *
+ */
+public class MovementPacketFilter {
+
+	private final SleeperPlugin plugin;
+	private final SleepTracker sleepTracker;
+	private final MetadataPacketFilter metadataFilter;
+
+	private final ProtocolManager protocolManager;
+	private final PacketListener packetListener;
+
+	/**
+	 * Entities whose packets we have dropped. Observers may have wrong idea
+	 * of where they are, until they're corrected.
+	 */
+	private final Set<LivingEntity> needCorrection;
+
+	public MovementPacketFilter(SleeperPlugin plugin, SleepTracker sleepTracker, MetadataPacketFilter metadataFilter) {
+		this.plugin = plugin;
+		this.sleepTracker = sleepTracker;
+		this.metadataFilter = metadataFilter;
+		this.protocolManager = ProtocolLibrary.getProtocolManager();
+		this.packetListener = new PacketAdapter(plugin, ListenerPriority.HIGHEST,
+				PacketType.Play.Server.REL_ENTITY_MOVE, PacketType.Play.Server.REL_ENTITY_MOVE_LOOK,
+				PacketType.Play.Server.ENTITY_LOOK, PacketType.Play.Server.ENTITY_HEAD_ROTATION,
+				PacketType.Play.Server.ANIMATION) {
+			@Override
+			public void onPacketSending(PacketEvent event) {
+				MovementPacketFilter.this.onSendPacket(event);
+			}
+		};
+		this.needCorrection = ConcurrentHashMap.newKeySet();
+	}
+
+	public void enable() {
+		protocolManager.addPacketListener(packetListener);
+
+		// Correct positions of players that have woken up once per tick
+		new BukkitRunnable() {
+
+			@Override
+			public void run() {
+				sendCorrections();
+			}
+		}.runTaskTimer(plugin, 1, 1);
+	}
+
+	private void onSendPacket(PacketEvent event) {
+		// All of our packet types have entity id first
+		int entityId = event.getPacket().getIntegers().read(0);
+		SleepStatus status = sleepTracker.getTrackedStatus(entityId);
+		if (status == null || status == SleepStatus.AWAKE) {
+			return; // Not sleeping
+		}
+		LivingEntity target = metadataFilter.getTarget(entityId);
+		if (target == null || !metadataFilter.canSeeSleep(event.getPlayer(), target)) {
+			return; // Observer sees them awake, so they need to see movement
+		}
+
+		// Sleepers don't visibly move, so observers don't need this
+		event.setCancelled(true);
+		needCorrection.add(target);
+	}
+
+	/**
+	 * Sends real positions of entities that woke up after some of their
+	 * packets were dropped. Must be called on server thread.
+	 */
+	private void sendCorrections() {
+		if (needCorrection.isEmpty()) {
+			return;
+		}
+		Iterator<LivingEntity> it = needCorrection.iterator();
+		while (it.hasNext()) {
+			LivingEntity entity = it.next();
+			if (!entity.isValid()) {
+				it.remove(); // Offline, dead or unloaded; observers forget them
+			} else if (sleepTracker.getSleepStatus(entity) == SleepStatus.AWAKE) {
+				it.remove();
+				sendPosition(entity);
+			} // Still sleeping, correct later
+		}
+	}
+
+	/**
+	 * Sends position, rotation and head rotation of an entity to everyone
+	 * who is tracking it.
+	 * @param entity Entity.
+	 */
+	private void sendPosition(LivingEntity entity) {
+		Location loc = entity.getLocation();
+		PacketContainer teleport = new PacketContainer(PacketType.Play.Server.ENTITY_TELEPORT);
+		teleport.getIntegers().write(0, entity.getEntityId());
+		teleport.getDoubles()
+				.write(0, loc.getX())
+				.write(1, loc.getY())
+				.write(2, loc.getZ());
+		teleport.getBytes()
+				.write(0, toAngle(loc.getYaw()))
+				.write(1, toAngle(loc.getPitch()));
+		teleport.getBooleans().write(0, entity.isOnGround());
+
+		PacketContainer headRotation = new PacketContainer(PacketType.Play.Server.ENTITY_HEAD_ROTATION);
+		headRotation.getIntegers().write(0, entity.getEntityId());
+		headRotation.getBytes().write(0, toAngle(loc.getYaw()));
+
+		for (Player observer : protocolManager.getEntityTrackers(entity)) {
+			try {
+				protocolManager.sendServerPacket(observer, teleport);
+				protocolManager.sendServerPacket(observer, headRotation);
+			} catch (InvocationTargetException e) {
+				throw new AssertionError(e);
+			}
+		}
+	}
+
+	/**
+	 * Converts degrees to protocol angle (256 steps per full turn).
+	 * @param degrees Angle in degrees.
+	 * @return Protocol angle.
+	 */
+	private static byte toAngle(float degrees) {
+		return (byte) (int) (degrees * 256 / 360);
+	}
+}
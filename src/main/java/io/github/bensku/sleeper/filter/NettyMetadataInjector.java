@@ -0,0 +1,126 @@
+package io.github.bensku.sleeper.filter;
+
+import java.lang.reflect.Field;
+import java.util.NoSuchElementException;
+import java.util.logging.Level;
+
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
+
+import io.github.bensku.sleeper.nms.NmsAccess;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.ChannelPromise;
+
+/**
+ * Alternative to ProtocolLib for filtering metadata packets. Installs a
+ * handler to pipeline of every player's connection, which rewrites metadata
+ * packets before they are encoded. This avoids ProtocolLib's per-packet
+ * event and listener overhead.
+ *
+ */
+class NettyMetadataInjector {
+
+	/**
+	 * Name of our handler in channel pipelines.
+	 */
+	private static final String HANDLER_NAME = "sleeper_metadata";
+
+	/**
+	 * Name of Minecraft's packet handler. Outbound packets pass through
+	 * handlers before it, and then reach the encoder.
+	 */
+	private static final String PACKET_HANDLER = "packet_handler";
+
+	private class MetadataHandler extends ChannelOutboundHandlerAdapter {
+
+		private final Player observer;
+
+		MetadataHandler(Player observer) {
+			this.observer = observer;
+		}
+
+		@Override
+		public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+			if (msg.getClass() == NmsAccess.METADATA_PACKET) {
+				try {
+					msg = filter.rewrite(msg, observer);
+				} catch (Throwable e) {
+					// Send the packet unmodified rather than break the connection
+					plugin.getLogger().log(Level.SEVERE, "metadata rewrite failure", e);
+				}
+			}
+			ctx.write(msg, promise);
+		}
+	}
+
+	private final Plugin plugin;
+	private final MetadataPacketFilter filter;
+
+	private Field playerConnection;
+	private Field networkManager;
+	private Field channel;
+
+	NettyMetadataInjector(Plugin plugin, MetadataPacketFilter filter) {
+		this.plugin = plugin;
+		this.filter = filter;
+	}
+
+	/**
+	 * Installs metadata handler to connection of a player, replacing one
+	 * that might've been left there e.g. by reload.
+	 * @param player Player.
+	 * @throws ReflectiveOperationException When the connection cannot be
+	 * accessed, e.g. because server internals have changed.
+	 */
+	public void inject(Player player) throws ReflectiveOperationException {
+		ChannelPipeline pipeline = getChannel(player).pipeline();
+		if (pipeline.get(HANDLER_NAME) != null) {
+			pipeline.remove(HANDLER_NAME);
+		}
+		pipeline.addBefore(PACKET_HANDLER, HANDLER_NAME, new MetadataHandler(player));
+	}
+
+	/**
+	 * Removes metadata handler from connection of a player, if it has one.
+	 * @param player Player.
+	 */
+	public void uninject(Player player) {
+		try {
+			ChannelPipeline pipeline = getChannel(player).pipeline();
+			if (pipeline.get(HANDLER_NAME) != null) {
+				pipeline.remove(HANDLER_NAME);
+			}
+		} catch (ReflectiveOperationException e) {
+			plugin.getLogger().log(Level.WARNING, "cannot remove metadata handler of " + player.getName(), e);
+		} catch (NoSuchElementException e) {
+			// Removed concurrently, e.g. because connection was closed
+		}
+	}
+
+	private Channel getChannel(Player player) throws ReflectiveOperationException {
+		Object handle = player.getClass().getMethod("getHandle").invoke(player);
+		if (playerConnection == null) {
+			// Find fields once; their names are obfuscated, so look at types
+			playerConnection = findField(handle.getClass(), NmsAccess.VERSION.getNmsClass("PlayerConnection"));
+			networkManager = findField(playerConnection.getType(), NmsAccess.VERSION.getNmsClass("NetworkManager"));
+			channel = findField(networkManager.getType(), Channel.class);
+		}
+		Object connection = playerConnection.get(handle);
+		return (Channel) channel.get(networkManager.get(connection));
+	}
+
+	private static Field findField(Class<?> owner, Class<?> type) throws NoSuchFieldException {
+		for (Class<?> c = owner; c != null; c = c.getSuperclass()) {
+			for (Field field : c.getDeclaredFields()) {
+				if (field.getType() == type) {
+					field.setAccessible(true);
+					return field;
+				}
+			}
+		}
+		throw new NoSuchFieldException(type.getName() + " in " + owner.getName());
+	}
+}
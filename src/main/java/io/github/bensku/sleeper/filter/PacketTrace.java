@@ -0,0 +1,330 @@
+package io.github.bensku.sleeper.filter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import io.github.bensku.sleeper.SleepStatus;
+
+/**
+ * Records metadata and entity action packets that the filters see to a
+ * binary trace file, so that real traffic can be replayed offline.
+ *
+ * <p>Packet threads never block on this. Records are put to a bounded queue
+ * and written by a background thread; when the queue is full, records are
+ * dropped and counted.
+ *
+ * <p>File starts with {@link #MAGIC} and {@link #VERSION}. Every record then
+ * starts with kind and nanoseconds since capture started (varlong):
+ * <ul>
+ * <li>{@link #METADATA}: observer id, target id (varints), sleep status,
+ * target kind, item count (bytes) and metadata index of each item (bytes)
+ * <li>{@link #ENTITY_ACTION}: player id (varint), action ordinal and sleep
+ * status (bytes)
+ * </ul>
+ * Sleep status is 0 if the entity was not tracked, otherwise ordinal + 1.
+ *
+ */
+public class PacketTrace implements AutoCloseable {
+
+	private static final int MAGIC = 0x534c5452; // SLTR
+	private static final int VERSION = 1;
+
+	static final byte METADATA = 0;
+	static final byte ENTITY_ACTION = 1;
+
+	/**
+	 * Metadata target that has no sleep status.
+	 */
+	static final byte TARGET_NONE = 0;
+	static final byte TARGET_PLAYER = 1;
+	static final byte TARGET_ENTITY = 2;
+
+	private static final SleepStatus[] STATUS_ARRAY = SleepStatus.values();
+
+	/**
+	 * A recorded packet.
+	 *
+	 */
+	static class Record {
+
+		final byte kind;
+		final long time;
+
+		/**
+		 * Observer of metadata, or player who sent entity action.
+		 */
+		final int playerId;
+
+		/**
+		 * Sleep status of metadata target or action sender, or null if they
+		 * were not tracked.
+		 */
+		final SleepStatus status;
+
+		final int targetId;
+		final byte targetKind;
+		final byte[] indices;
+		final int action;
+
+		Record(byte kind, long time, int playerId, SleepStatus status, int targetId, byte targetKind,
+				byte[] indices, int action) {
+			this.kind = kind;
+			this.time = time;
+			this.playerId = playerId;
+			this.status = status;
+			this.targetId = targetId;
+			this.targetKind = targetKind;
+			this.indices = indices;
+			this.action = action;
+		}
+	}
+
+	private final DataOutputStream out;
+	private final int capacity;
+	private final long startTime;
+
+	private final Queue<Record> queue;
+	private final AtomicInteger queued;
+
+	private final LongAdder recorded;
+	private final LongAdder dropped;
+
+	private final Thread writer;
+	private volatile boolean closed;
+
+	/**
+	 * Failure that stopped the writer thread, if any.
+	 */
+	private volatile IOException failure;
+
+	/**
+	 * Creates a trace file and starts writing to it.
+	 * @param file Path to trace file.
+	 * @param capacity How many records may wait to be written before new
+	 * ones are dropped.
+	 * @throws IOException When the file cannot be created.
+	 */
+	public PacketTrace(Path file, int capacity) throws IOException {
+		this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16));
+		out.writeInt(MAGIC);
+		out.writeByte(VERSION);
+		this.capacity = capacity;
+		this.startTime = System.nanoTime();
+		this.queue = new ConcurrentLinkedQueue<>();
+		this.queued = new AtomicInteger();
+		this.recorded = new LongAdder();
+		this.dropped = new LongAdder();
+		this.writer = new Thread(this::writeRecords, "Sleeper trace writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Records an outgoing metadata packet. Safe to call from any thread.
+	 * @param observerId Entity id of player who receives the packet.
+	 * @param targetId Entity id in the packet.
+	 * @param status Tracked status of target.
+	 * @param targetKind {@link #TARGET_PLAYER}, {@link #TARGET_ENTITY} or
+	 * {@link #TARGET_NONE}.
+	 * @param indices Metadata indices of items in the packet.
+	 */
+	void metadata(int observerId, int targetId, SleepStatus status, byte targetKind, byte[] indices) {
+		offer(new Record(METADATA, System.nanoTime() - startTime, observerId, status, targetId, targetKind, indices, 0));
+	}
+
+	/**
+	 * Records an inbound entity action packet. Safe to call from any thread.
+	 * @param playerId Entity id of player who sent the packet.
+	 * @param action Ordinal of action.
+	 * @param status Tracked status of player.
+	 */
+	void entityAction(int playerId, int action, SleepStatus status) {
+		offer(new Record(ENTITY_ACTION, System.nanoTime() - startTime, playerId, status, 0, TARGET_NONE, null, action));
+	}
+
+	private void offer(Record record) {
+		if (closed || queued.incrementAndGet() > capacity) {
+			queued.decrementAndGet();
+			dropped.increment(); // Writer can't keep up; don't make packet threads wait
+			return;
+		}
+		queue.offer(record);
+		if (closed && queue.remove(record)) {
+			// Writer may have stopped already, so this would never be written
+			queued.decrementAndGet();
+			dropped.increment();
+		}
+	}
+
+	/**
+	 * Gets number of records that have been written.
+	 * @return Number of records.
+	 */
+	public long getRecorded() {
+		return recorded.sum();
+	}
+
+	/**
+	 * Gets number of records that were dropped because queue was full,
+	 * trace was closed or writing it failed.
+	 * @return Number of records.
+	 */
+	public long getDropped() {
+		return dropped.sum();
+	}
+
+	private void writeRecords() {
+		try {
+			boolean draining = false;
+			while (true) {
+				Record record = queue.poll();
+				if (record == null) {
+					if (draining) {
+						break; // Later offers see closed and drop their records
+					} else if (closed) {
+						draining = true; // Poll again for records offered before close
+					} else {
+						out.flush();
+						LockSupport.parkNanos(1_000_000);
+					}
+					continue;
+				}
+				queued.decrementAndGet();
+				write(record);
+				recorded.increment();
+			}
+		} catch (IOException e) {
+			failure = e;
+			closed = true;
+		} finally {
+			// Whatever is left will not be written
+			while (queue.poll() != null) {
+				queued.decrementAndGet();
+				dropped.increment();
+			}
+			try {
+				out.close();
+			} catch (IOException e) {
+				if (failure == null) {
+					failure = e;
+				}
+			}
+		}
+	}
+
+	private void write(Record record) throws IOException {
+		out.writeByte(record.kind);
+		writeVarLong(out, record.time);
+		writeVarLong(out, record.playerId);
+		if (record.kind == METADATA) {
+			writeVarLong(out, record.targetId);
+			out.writeByte(record.status != null ? record.status.ordinal() + 1 : 0);
+			out.writeByte(record.targetKind);
+			out.writeByte(record.indices.length);
+			out.write(record.indices);
+		} else {
+			out.writeByte(record.action);
+			out.writeByte(record.status != null ? record.status.ordinal() + 1 : 0);
+		}
+	}
+
+	/**
+	 * Stops recording and waits until everything recorded has been
+	 * written to the file.
+	 * @throws IOException When writing the trace failed.
+	 */
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * Reads all records from a trace file.
+	 * @param file Path to trace file.
+	 * @return Records in order they were written.
+	 * @throws IOException When reading fails or the file is not a trace.
+	 */
+	static List<Record> read(Path file) throws IOException {
+		List<Record> records = new ArrayList<>();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+			if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+				throw new IOException("not a Sleeper trace or unsupported version: " + file);
+			}
+			while (true) {
+				int kind = in.read();
+				if (kind == -1) {
+					break; // End of file
+				}
+				long time = readVarLong(in);
+				int playerId = (int) readVarLong(in);
+				if (kind == METADATA) {
+					int targetId = (int) readVarLong(in);
+					SleepStatus status = toStatus(in.readByte());
+					byte targetKind = in.readByte();
+					byte[] indices = new byte[in.readUnsignedByte()];
+					in.readFully(indices);
+					records.add(new Record(METADATA, time, playerId, status, targetId, targetKind, indices, 0));
+				} else if (kind == ENTITY_ACTION) {
+					int action = in.readUnsignedByte();
+					SleepStatus status = toStatus(in.readByte());
+					records.add(new Record(ENTITY_ACTION, time, playerId, status, 0, TARGET_NONE, null, action));
+				} else {
+					throw new IOException("unknown record kind " + kind + " in " + file);
+				}
+			}
+		}
+		return records;
+	}
+
+	private static SleepStatus toStatus(byte value) {
+		return value == 0 ? null : STATUS_ARRAY[value - 1];
+	}
+
+	private static void writeVarLong(OutputStream out, long value) throws IOException {
+		// Entity ids are not negative, but time and unusual ids might be
+		value = value << 1 ^ value >> 63;
+		while ((value & ~0x7fL) != 0) {
+			out.write((int) value & 0x7f | 0x80);
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	private static long readVarLong(InputStream in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.read();
+			if (b == -1) {
+				throw new EOFException();
+			}
+			value |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return value >>> 1 ^ -(value & 1);
+			}
+		}
+		throw new IOException("malformed varint");
+	}
+}
@@ -0,0 +1,54 @@
+package io.github.bensku.sleeper.filter;
+
+import org.bukkit.entity.Player;
+
+import com.comphenix.protocol.PacketType;
+import com.comphenix.protocol.ProtocolLibrary;
+import com.comphenix.protocol.ProtocolManager;
+import com.comphenix.protocol.events.ListenerPriority;
+import com.comphenix.protocol.events.PacketAdapter;
+import com.comphenix.protocol.events.PacketEvent;
+import com.comphenix.protocol.events.PacketListener;
+
+import io.github.bensku.sleeper.SleepStatus;
+import io.github.bensku.sleeper.SleepTracker;
+import io.github.bensku.sleeper.SleeperPlugin;
+
+/**
+ * Drops position and look packets that force-sleeping players send. They
+ * cannot move, so there is no reason to let server process their movement.
+ * Packets are dropped on network threads, before they reach server thread.
+ *
+ */
+public class PositionPacketFilter {
+
+	private final SleepTracker sleepTracker;
+
+	private final ProtocolManager protocolManager;
+	private final PacketListener packetListener;
+
+	public PositionPacketFilter(SleeperPlugin plugin, SleepTracker sleepTracker) {
+		this.sleepTracker = sleepTracker;
+		this.protocolManager = ProtocolLibrary.getProtocolManager();
+		// Teleport confirmations and keep-alives are not touched
+		this.packetListener = new PacketAdapter(plugin, ListenerPriority.LOWEST,
+				PacketType.Play.Client.POSITION, PacketType.Play.Client.POSITION_LOOK,
+				PacketType.Play.Client.LOOK, PacketType.Play.Client.FLYING) {
+			@Override
+			public void onPacketReceiving(PacketEvent event) {
+				PositionPacketFilter.this.onReceivePacket(event);
+			}
+		};
+	}
+
+	public void enable() {
+		protocolManager.addPacketListener(packetListener);
+	}
+
+	private void onReceivePacket(PacketEvent event) {
+		Player player = event.getPlayer();
+		if (sleepTracker.getSleepStatus(player) == SleepStatus.FORCED_SLEEP) { // Safe here
+			event.setCancelled(true);
+		}
+	}
+}
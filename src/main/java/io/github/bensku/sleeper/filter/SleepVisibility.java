@@ -0,0 +1,193 @@
+package io.github.bensku.sleeper.filter;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bukkit.entity.Entity;
+
+/**
+ * Controls which observers see sleep of which entities. By default, everyone
+ * sees everyone sleeping. For entities that have restricted visibility, a
+ * bitset of observer indices tells who can or cannot see them sleep.
+ *
+ * <p>Checking visibility is safe from any thread, and requires one map
+ * lookup and a bit test. All changes must be made on server thread.
+ *
+ */
+class SleepVisibility {
+
+	/**
+	 * Visibility of one player.
+	 *
+	 */
+	private static class Entry {
+
+		/**
+		 * If set bits mean that observer can see the sleep. Otherwise, they
+		 * mean that observer cannot see it.
+		 */
+		final boolean whitelist;
+
+		/**
+		 * Bits by observer index. Never modified after being published;
+		 * changes replace the whole array.
+		 */
+		volatile long[] bits;
+
+		Entry(boolean whitelist) {
+			this.whitelist = whitelist;
+			this.bits = new long[0];
+		}
+
+		boolean get(int index) {
+			long[] bits = this.bits;
+			int word = index >>> 6;
+			return word < bits.length && (bits[word] & 1L << index) != 0;
+		}
+
+		boolean isEmpty() {
+			for (long word : bits) {
+				if (word != 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Entities that have restricted sleep visibility.
+	 */
+	private final Map<Entity, Entry> entries;
+
+	/**
+	 * Observer indices that have been released and can be reused. Reusing
+	 * them keeps bitsets small.
+	 */
+	private int[] freeIndices;
+	private int freeCount;
+
+	/**
+	 * Next never-used observer index.
+	 */
+	private int nextIndex;
+
+	SleepVisibility() {
+		this.entries = new ConcurrentHashMap<>();
+		this.freeIndices = new int[16];
+	}
+
+	/**
+	 * Allocates an index for a new observer.
+	 * @return Observer index.
+	 */
+	int allocateIndex() {
+		if (freeCount > 0) {
+			return freeIndices[--freeCount];
+		}
+		return nextIndex++;
+	}
+
+	/**
+	 * Releases index of an observer that has left. Bits set for it are
+	 * cleared, so the next observer to get it starts with default visibility.
+	 * @param index Observer index.
+	 */
+	void releaseIndex(int index) {
+		for (Map.Entry<Entity, Entry> entry : entries.entrySet()) {
+			if (entry.getValue().get(index)) {
+				setBits(entry.getKey(), entry.getValue(), new int[] {index}, false);
+			}
+		}
+		if (freeCount == freeIndices.length) {
+			freeIndices = Arrays.copyOf(freeIndices, freeCount * 2);
+		}
+		freeIndices[freeCount++] = index;
+	}
+
+	/**
+	 * Checks if an observer can see sleep of a player.
+	 * @param target Entity that might be sleeping.
+	 * @param observerIndex Index of observer.
+	 * @return Whether the observer should see the target sleeping.
+	 */
+	boolean canSee(Entity target, int observerIndex) {
+		Entry entry = entries.get(target);
+		return entry == null || entry.get(observerIndex) == entry.whitelist;
+	}
+
+	/**
+	 * Checks if sleep of an entity is not visible to everyone.
+	 * @param target Entity.
+	 * @return If observers may see the target differently.
+	 */
+	boolean isRestricted(Entity target) {
+		return entries.containsKey(target);
+	}
+
+	/**
+	 * Shows or hides sleep of a player from observers.
+	 * @param target Entity.
+	 * @param observerIndices Indices of observers.
+	 * @param visible If observers should see the target sleeping.
+	 */
+	void setVisible(Entity target, int[] observerIndices, boolean visible) {
+		if (observerIndices.length == 0) {
+			return;
+		}
+		Entry entry = entries.get(target);
+		if (entry == null) {
+			if (visible) {
+				return; // Everyone sees target sleeping already
+			}
+			entry = new Entry(false); // Hide from some, show to others
+			setBits(target, entry, observerIndices, true);
+			entries.put(target, entry);
+		} else {
+			// Set or clear bits, depending on what they mean for this entry
+			setBits(target, entry, observerIndices, visible == entry.whitelist);
+		}
+	}
+
+	/**
+	 * Makes sleep of a player visible only to given observers.
+	 * @param target Entity.
+	 * @param observerIndices Indices of observers.
+	 */
+	void setOnlyVisible(Entity target, int[] observerIndices) {
+		Entry entry = new Entry(true);
+		setBits(null, entry, observerIndices, true);
+		entries.put(target, entry);
+	}
+
+	/**
+	 * Makes sleep of a player visible to everyone again.
+	 * @param target Entity.
+	 */
+	void reset(Entity target) {
+		entries.remove(target);
+	}
+
+	private void setBits(Entity target, Entry entry, int[] indices, boolean value) {
+		long[] bits = entry.bits;
+		int maxWord = bits.length - 1;
+		for (int index : indices) {
+			maxWord = Math.max(maxWord, index >>> 6);
+		}
+		long[] copy = Arrays.copyOf(bits, maxWord + 1);
+		for (int index : indices) {
+			if (value) {
+				copy[index >>> 6] |= 1L << index;
+			} else {
+				copy[index >>> 6] &= ~(1L << index);
+			}
+		}
+		entry.bits = copy; // Publish to packet threads
+
+		// Blacklist with nobody in it is same as no entry at all
+		if (target != null && !entry.whitelist && entry.isEmpty()) {
+			entries.remove(target, entry);
+		}
+	}
+}
@@ -0,0 +1,26 @@
+package io.github.bensku.sleeper.jfr;
+
+/**
+ * Tells if Java Flight Recorder events can be used. Older Java 8 runtimes
+ * don't have jdk.jfr, and event classes in this package fail to load
+ * there. Callers must check {@link #AVAILABLE} before touching them.
+ *
+ */
+public final class FlightRecorderSupport {
+
+	private FlightRecorderSupport() {}
+
+	/**
+	 * If jdk.jfr is available.
+	 */
+	public static final boolean AVAILABLE = isAvailable();
+
+	private static boolean isAvailable() {
+		try {
+			Class.forName("jdk.jfr.Event", false, FlightRecorderSupport.class.getClassLoader());
+			return true;
+		} catch (ClassNotFoundException | LinkageError e) {
+			return false;
+		}
+	}
+}
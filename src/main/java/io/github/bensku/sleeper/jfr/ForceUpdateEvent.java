@@ -0,0 +1,41 @@
+package io.github.bensku.sleeper.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Batch of sleep status updates was sent to observers.
+ *
+ */
+@Name("io.github.bensku.sleeper.ForceUpdate")
+@Label("Force Update")
+@Category("Sleeper")
+@Description("Sleep statuses changed during a tick were sent to observers")
+public class ForceUpdateEvent extends Event {
+
+	private static final EventType TYPE = EventType.getEventType(ForceUpdateEvent.class);
+
+	@Label("Entities")
+	public int entities;
+
+	@Label("Observers")
+	@Description("Metadata packets sent, summed over all entities")
+	public int observers;
+
+	/**
+	 * Starts an event, if it is being recorded.
+	 * @return Started event, or null when not recording.
+	 */
+	public static ForceUpdateEvent start() {
+		if (!TYPE.isEnabled()) {
+			return null; // Don't allocate when not recording
+		}
+		ForceUpdateEvent event = new ForceUpdateEvent();
+		event.begin();
+		return event;
+	}
+}
@@ -0,0 +1,50 @@
+package io.github.bensku.sleeper.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Metadata packet was rewritten to show sleep status to an observer.
+ * Packets that are passed through unchanged are not recorded.
+ *
+ */
+@Name("io.github.bensku.sleeper.MetadataRewrite")
+@Label("Metadata Rewrite")
+@Category("Sleeper")
+@Description("Sleep status was injected to an entity metadata packet")
+public class MetadataRewriteEvent extends Event {
+
+	private static final EventType TYPE = EventType.getEventType(MetadataRewriteEvent.class);
+
+	@Label("Entity Id")
+	public int entityId;
+
+	@Label("Entries Replaced")
+	@Description("Pose and bed position items that replaced existing items")
+	public int replaced;
+
+	@Label("Entries Appended")
+	@Description("Pose and bed position items added to packet")
+	public int appended;
+
+	@Label("Copied")
+	@Description("If packet was copied for this observer only")
+	public boolean copied;
+
+	/**
+	 * Starts an event, if it is being recorded.
+	 * @return Started event, or null when not recording.
+	 */
+	public static MetadataRewriteEvent start() {
+		if (!TYPE.isEnabled()) {
+			return null; // Don't allocate when not recording
+		}
+		MetadataRewriteEvent event = new MetadataRewriteEvent();
+		event.begin();
+		return event;
+	}
+}
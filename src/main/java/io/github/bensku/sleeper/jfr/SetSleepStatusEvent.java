@@ -0,0 +1,72 @@
+package io.github.bensku.sleeper.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+import io.github.bensku.sleeper.SleepStatus;
+
+/**
+ * Sleep status of a player or other living entity was set through API.
+ *
+ */
+@Name("io.github.bensku.sleeper.SetSleepStatus")
+@Label("Set Sleep Status")
+@Category("Sleeper")
+@Description("Sleep status of an entity was set through Sleeper API")
+public class SetSleepStatusEvent extends Event {
+
+	private static final EventType TYPE = EventType.getEventType(SetSleepStatusEvent.class);
+
+	@Label("Entity Id")
+	public int entityId;
+
+	@Label("Entity Type")
+	public String entityType;
+
+	@Label("Old Status")
+	public String oldStatus;
+
+	@Label("New Status")
+	public String newStatus;
+
+	@Label("Cancelled")
+	@Description("If another plugin cancelled the change")
+	public boolean cancelled;
+
+	@Label("Observers")
+	@Description("Players who will be sent the change")
+	public int observers;
+
+	/**
+	 * Checks if these events are being recorded.
+	 * @return If they are recorded.
+	 */
+	public static boolean isRecording() {
+		return TYPE.isEnabled();
+	}
+
+	/**
+	 * Starts an event, if it is being recorded.
+	 * @param entityId Entity id.
+	 * @param entityType Type of entity.
+	 * @param oldStatus Status before change.
+	 * @param newStatus Requested status.
+	 * @return Started event, or null when not recording.
+	 */
+	public static SetSleepStatusEvent start(int entityId, Object entityType, SleepStatus oldStatus, SleepStatus newStatus) {
+		if (!TYPE.isEnabled()) {
+			return null; // Don't allocate when not recording
+		}
+		SetSleepStatusEvent event = new SetSleepStatusEvent();
+		event.entityId = entityId;
+		event.entityType = String.valueOf(entityType);
+		event.oldStatus = oldStatus.name();
+		event.newStatus = newStatus.name();
+		event.begin();
+		return event;
+	}
+}
@@ -0,0 +1,190 @@
+package io.github.bensku.sleeper.nms;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Access to NMS classes that packet filters need. Everything is resolved
+ * when this class is initialized, which should be done with
+ * {@link #init()} when the plugin is enabled. After that, handles here are
+ * constants and cheap to call from any thread.
+ *
+ */
+public final class NmsAccess {
+
+	private NmsAccess() {}
+
+	/**
+	 * Version of the running server.
+	 */
+	public static final NmsVersion VERSION;
+
+	public static final int POSE_INDEX;
+	public static final int BED_POS_INDEX;
+
+	/**
+	 * Entity metadata packet class.
+	 */
+	public static final Class<?> METADATA_PACKET;
+
+	/**
+	 * Packet -> entity id.
+	 */
+	public static final MethodHandle PACKET_ENTITY_ID;
+
+	/**
+	 * Packet, entity id -> void.
+	 */
+	public static final MethodHandle SET_PACKET_ENTITY_ID;
+
+	/**
+	 * Packet -> list of DataWatcher items.
+	 */
+	public static final MethodHandle PACKET_ITEMS;
+
+	/**
+	 * Packet, list of DataWatcher items -> void.
+	 */
+	public static final MethodHandle SET_PACKET_ITEMS;
+
+	/**
+	 * () -> empty metadata packet.
+	 */
+	public static final MethodHandle NEW_PACKET;
+
+	/**
+	 * DataWatcher item -> metadata index.
+	 */
+	public static final MethodHandle ITEM_INDEX;
+
+	/**
+	 * DataWatcher object, value -> DataWatcher item.
+	 */
+	public static final MethodHandle NEW_ITEM;
+
+	/**
+	 * x, y, z -> BlockPosition.
+	 */
+	public static final MethodHandle NEW_BLOCK_POS;
+
+	/**
+	 * DataWatcher object for pose. Immutable, can be shared.
+	 */
+	public static final Object POSE_OBJECT;
+
+	/**
+	 * DataWatcher object for bed position. Immutable, can be shared.
+	 */
+	public static final Object BED_POS_OBJECT;
+
+	/**
+	 * Sleeping pose.
+	 */
+	public static final Object POSE_SLEEPING;
+
+	static {
+		VERSION = NmsVersion.detect();
+		POSE_INDEX = VERSION.getPoseIndex();
+		BED_POS_INDEX = VERSION.getBedPosIndex();
+		MethodHandles.Lookup lookup = MethodHandles.lookup();
+		try {
+			// Metadata packet; first int is entity id, only list has items
+			METADATA_PACKET = VERSION.getNmsClass("PacketPlayOutEntityMetadata");
+			Field entityId = findField(METADATA_PACKET, int.class);
+			Field items = findField(METADATA_PACKET, List.class);
+			PACKET_ENTITY_ID = lookup.unreflectGetter(entityId)
+					.asType(MethodType.methodType(int.class, Object.class));
+			SET_PACKET_ENTITY_ID = lookup.unreflectSetter(entityId)
+					.asType(MethodType.methodType(void.class, Object.class, int.class));
+			PACKET_ITEMS = lookup.unreflectGetter(items)
+					.asType(MethodType.methodType(List.class, Object.class));
+			SET_PACKET_ITEMS = lookup.unreflectSetter(items)
+					.asType(MethodType.methodType(void.class, Object.class, List.class));
+			Constructor<?> packetConstructor = METADATA_PACKET.getDeclaredConstructor();
+			packetConstructor.setAccessible(true);
+			NEW_PACKET = lookup.unreflectConstructor(packetConstructor)
+					.asType(MethodType.methodType(Object.class));
+
+			// DataWatcher items and objects that identify them
+			Class<?> itemClass = VERSION.getNmsClass("DataWatcher$Item");
+			Class<?> objectClass = VERSION.getNmsClass("DataWatcherObject");
+			Class<?> serializerClass = VERSION.getNmsClass("DataWatcherSerializer");
+			NEW_ITEM = lookup.unreflectConstructor(itemClass.getConstructor(objectClass, Object.class))
+					.asType(MethodType.methodType(Object.class, Object.class, Object.class));
+			ITEM_INDEX = MethodHandles.filterReturnValue(lookup.unreflect(findGetter(itemClass, objectClass)),
+					lookup.unreflect(findGetter(objectClass, int.class)))
+					.asType(MethodType.methodType(int.class, Object.class));
+			Constructor<?> objectConstructor = objectClass.getConstructor(int.class, serializerClass);
+
+			Class<?> poseEnum = VERSION.getNmsClass("EntityPose");
+			Class<?> blockPosClass = VERSION.getNmsClass("BlockPosition");
+			NEW_BLOCK_POS = lookup.unreflectConstructor(blockPosClass.getConstructor(int.class, int.class, int.class))
+					.asType(MethodType.methodType(Object.class, int.class, int.class, int.class));
+			POSE_SLEEPING = poseEnum.getMethod("valueOf", String.class).invoke(null, "SLEEPING");
+
+			// Serializers are in static fields of registry, find them by type
+			Class<?> registry = VERSION.getNmsClass("DataWatcherRegistry");
+			POSE_OBJECT = objectConstructor.newInstance(POSE_INDEX, findSerializer(registry, poseEnum, false));
+			BED_POS_OBJECT = objectConstructor.newInstance(BED_POS_INDEX, findSerializer(registry, blockPosClass, true));
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("NMS of " + VERSION.getMinecraftVersion() + " is not what Sleeper expected", e);
+		}
+	}
+
+	/**
+	 * Makes sure that all NMS access has been resolved. If that fails, this
+	 * throws {@link ExceptionInInitializerError} with cause explaining why.
+	 */
+	public static void init() {
+		// Class initialization does everything
+	}
+
+	private static Field findField(Class<?> owner, Class<?> type) throws NoSuchFieldException {
+		for (Field field : owner.getDeclaredFields()) {
+			if (!Modifier.isStatic(field.getModifiers()) && field.getType() == type) {
+				field.setAccessible(true);
+				return field;
+			}
+		}
+		throw new NoSuchFieldException(type.getName() + " in " + owner.getName());
+	}
+
+	private static Method findGetter(Class<?> owner, Class<?> type) throws NoSuchMethodException {
+		for (Method method : owner.getDeclaredMethods()) {
+			if (method.getParameterCount() == 0 && method.getReturnType() == type
+					&& !Modifier.isStatic(method.getModifiers()) && !method.getName().equals("hashCode")) {
+				return method;
+			}
+		}
+		throw new NoSuchMethodException(type.getName() + " getter in " + owner.getName());
+	}
+
+	private static Object findSerializer(Class<?> registry, Class<?> type, boolean optional) throws ReflectiveOperationException {
+		for (Field field : registry.getDeclaredFields()) {
+			if (!Modifier.isStatic(field.getModifiers()) || !(field.getGenericType() instanceof ParameterizedType)) {
+				continue;
+			}
+			Type arg = ((ParameterizedType) field.getGenericType()).getActualTypeArguments()[0];
+			if (optional) {
+				if (!(arg instanceof ParameterizedType) || ((ParameterizedType) arg).getRawType() != Optional.class) {
+					continue;
+				}
+				arg = ((ParameterizedType) arg).getActualTypeArguments()[0];
+			}
+			if (arg == type) {
+				field.setAccessible(true);
+				return field.get(null);
+			}
+		}
+		throw new NoSuchFieldException("serializer for " + type.getName() + " in " + registry.getName());
+	}
+}
@@ -0,0 +1,117 @@
+package io.github.bensku.sleeper.nms;
+
+import org.bukkit.Bukkit;
+
+/**
+ * Server versions that Sleeper supports, and metadata layouts for them.
+ *
+ */
+public enum NmsVersion {
+
+	V1_14_R1("v1_14_R1", "1.14", 6, 12),
+	
+	/**
+	 * Bee stingers were added before bed position in 1.15.
+	 */
+	V1_15_R1("v1_15_R1", "1.15", 6, 13),
+	V1_16_R1("v1_16_R1", "1.16.1", 6, 13),
+	V1_16_R2("v1_16_R2", "1.16.3", 6, 13),
+	V1_16_R3("v1_16_R3", "1.16.5", 6, 13);
+
+	/**
+	 * System property that overrides detected revision. Useful when there is
+	 * no real server, e.g. in benchmarks.
+	 */
+	public static final String REVISION_PROPERTY = "sleeper.nms.revision";
+
+	/**
+	 * CraftBukkit/NMS package revision.
+	 */
+	private final String revision;
+
+	/**
+	 * Human-readable (latest) Minecraft version for this revision.
+	 */
+	private final String minecraftVersion;
+
+	/**
+	 * Metadata index of entity pose.
+	 */
+	private final int poseIndex;
+
+	/**
+	 * Metadata index of bed position of living entities.
+	 */
+	private final int bedPosIndex;
+
+	NmsVersion(String revision, String minecraftVersion, int poseIndex, int bedPosIndex) {
+		this.revision = revision;
+		this.minecraftVersion = minecraftVersion;
+		this.poseIndex = poseIndex;
+		this.bedPosIndex = bedPosIndex;
+	}
+
+	public String getRevision() {
+		return revision;
+	}
+
+	public String getMinecraftVersion() {
+		return minecraftVersion;
+	}
+
+	public int getPoseIndex() {
+		return poseIndex;
+	}
+
+	public int getBedPosIndex() {
+		return bedPosIndex;
+	}
+
+	/**
+	 * Checks if spawn packets of players and living entities carry their
+	 * metadata. Since 1.15, it is sent in a separate metadata packet.
+	 * @return If spawn packets have metadata.
+	 */
+	public boolean hasSpawnMetadata() {
+		return this == V1_14_R1;
+	}
+
+	/**
+	 * Gets a NMS class of this version.
+	 * @param name Class name without package.
+	 * @return The class.
+	 * @throws ClassNotFoundException When the class does not exist.
+	 */
+	public Class<?> getNmsClass(String name) throws ClassNotFoundException {
+		return Class.forName("net.minecraft.server." + revision + "." + name);
+	}
+
+	/**
+	 * Gets revision of the running server.
+	 * @return CraftBukkit package revision, e.g. v1_15_R1.
+	 */
+	public static String getServerRevision() {
+		String revision = System.getProperty(REVISION_PROPERTY);
+		if (revision != null) {
+			return revision;
+		}
+		String craftPackage = Bukkit.getServer().getClass().getPackage().getName();
+		return craftPackage.substring(craftPackage.lastIndexOf('.') + 1);
+	}
+
+	/**
+	 * Detects version of the running server.
+	 * @return Server version.
+	 * @throws IllegalStateException When the server version is not supported.
+	 */
+	public static NmsVersion detect() {
+		String revision = getServerRevision();
+		for (NmsVersion version : values()) {
+			if (version.revision.equals(revision)) {
+				return version;
+			}
+		}
+		throw new IllegalStateException("unsupported server version " + revision + "; Sleeper supports Minecraft "
+				+ V1_14_R1.minecraftVersion + " to " + values()[values().length - 1].minecraftVersion);
+	}
+}